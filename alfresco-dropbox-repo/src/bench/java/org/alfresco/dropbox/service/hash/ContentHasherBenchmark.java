@@ -0,0 +1,132 @@
+/*
+ * Copyright 2011-2012 Alfresco Software Limited.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.dropbox.service.hash;
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.repo.content.filestore.FileContentReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Measures how long {@link ContentHasher} takes to hash a file, reading it one block at a time on the calling thread and
+ * hashing the blocks in parallel. Each invocation hashes the file under a new content URL, so the hash cache is never hit.
+ * <p>
+ * Run with the benchmark profile: <code>mvn -Pbenchmark compile exec:exec</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ContentHasherBenchmark
+{
+    /**
+     * Size of the file hashed, in MB. 1 MB is under a block, so is always hashed on the calling thread.
+     */
+    @Param({ "1", "16", "64", "256" })
+    private int                 sizeMb;
+
+    private File                file;
+
+    private ContentHasher       sequential;
+    private ContentHasher       parallel;
+
+    private final AtomicLong    invocations = new AtomicLong();
+
+
+    @Setup(Level.Trial)
+    public void setUp()
+        throws IOException
+    {
+        file = File.createTempFile("ContentHasherBenchmark", ".bin");
+        file.deleteOnExit();
+
+        byte[] buffer = new byte[1048576];
+        Random random = new Random(42);
+
+        FileOutputStream out = new FileOutputStream(file);
+        try
+        {
+            for (int i = 0; i < sizeMb; i++)
+            {
+                random.nextBytes(buffer);
+                out.write(buffer);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+
+        // Without init() there is no executor, so every block is hashed on the calling thread
+        sequential = new ContentHasher();
+        sequential.setCacheSize(0);
+
+        parallel = new ContentHasher();
+        parallel.setCacheSize(0);
+        parallel.init();
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        parallel.destroy();
+        file.delete();
+    }
+
+
+    @Benchmark
+    public String hashSequential()
+        throws IOException
+    {
+        return sequential.getContentHash(newReader());
+    }
+
+
+    @Benchmark
+    public String hashParallel()
+        throws IOException
+    {
+        return parallel.getContentHash(newReader());
+    }
+
+
+    private FileContentReader newReader()
+    {
+        return new FileContentReader(file, "store://benchmark/" + invocations.incrementAndGet() + ".bin");
+    }
+}
@@ -62,11 +62,13 @@ public interface DropboxConstants
         public static final QName  TYPE_METADATA             = QName.createQName(Model.ORG_DROPBOX_MODEL_1_0_URI, "metadata");
         public static final QName  PROP_HASH                 = QName.createQName(Model.ORG_DROPBOX_MODEL_1_0_URI, "hash");
         public static final QName  PROP_REV                  = QName.createQName(Model.ORG_DROPBOX_MODEL_1_0_URI, "rev");
+        public static final QName  PROP_CONTENT_HASH         = QName.createQName(Model.ORG_DROPBOX_MODEL_1_0_URI, "contenthash");
 
         public static final QName  ASPECT_DROBOX_OAUTH       = QName.createQName(Model.ORG_DROPBOX_MODEL_1_0_URI, "oauth");
         public static final QName  PROP_ACCESS_TOKEN         = QName.createQName(Model.ORG_DROPBOX_MODEL_1_0_URI, "access_token");
         public static final QName  PROP_TOKEN_SECRET         = QName.createQName(Model.ORG_DROPBOX_MODEL_1_0_URI, "token_secret");
         public static final QName  PROP_OAUTH_COMPLETE       = QName.createQName(Model.ORG_DROPBOX_MODEL_1_0_URI, "oauth_complete");
+        public static final QName  PROP_DELTA_CURSOR         = QName.createQName(Model.ORG_DROPBOX_MODEL_1_0_URI, "deltacursor");
 
 
         /**
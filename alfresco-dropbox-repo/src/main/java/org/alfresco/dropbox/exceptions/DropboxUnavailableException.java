@@ -0,0 +1,52 @@
+/*
+ * Copyright 2011-2012 Alfresco Software Limited.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ * 
+ */
+
+package org.alfresco.dropbox.exceptions;
+
+/**
+ * Thrown without calling Dropbox while repeated failures have opened the circuit breaker
+ */
+public class DropboxUnavailableException
+    extends DropboxClientException
+{
+
+    private static final long serialVersionUID = 3385712508174412079L;
+
+    private long              retryAfter;
+
+
+    /**
+     * @param retryAfter milliseconds until Dropbox will be tried again
+     */
+    public DropboxUnavailableException(long retryAfter)
+    {
+        super("Dropbox is unavailable. Please try again in " + (retryAfter / 1000 + 1) + " seconds.");
+
+        this.retryAfter = retryAfter;
+    }
+
+
+    /**
+     * @return milliseconds until Dropbox will be tried again
+     */
+    public long getRetryAfter()
+    {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2011-2012 Alfresco Software Limited.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ * 
+ */
+
+package org.alfresco.dropbox.exceptions;
+
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Thrown when work done for a number of users failed for some of them. The cause is why it failed for one of them, the rate
+ * limit or circuit breaker if either stopped it.
+ */
+public class FanOutException
+    extends DropboxClientException
+{
+
+    private static final long  serialVersionUID = 6178253311250963381L;
+
+    private final List<String> failedUsers;
+
+
+    public FanOutException(Collection<String> failedUsers, Throwable cause)
+    {
+        super("Dropbox: Work failed for " + failedUsers + ": " + cause.getMessage(), cause);
+
+        this.failedUsers = new ArrayList<String>(failedUsers);
+    }
+
+
+    /**
+     * @return the users the work failed for, and should be tried again for
+     */
+    public List<String> getFailedUsers()
+    {
+        return failedUsers;
+    }
+}
@@ -30,10 +30,32 @@ public class RateLimitException
 
     private static final long serialVersionUID = -7504670771441669417L;
 
+    private long              retryAfter       = -1;
+
 
     public RateLimitException()
     {
         super("You've exceed the rate limit (5000 requests per day).  Please try again later.");
     }
 
+
+    /**
+     * @param retryAfter milliseconds until requests may be made again
+     */
+    public RateLimitException(long retryAfter)
+    {
+        super("Dropbox rate limit reached. Please try again in " + (retryAfter / 1000 + 1) + " seconds.");
+
+        this.retryAfter = retryAfter;
+    }
+
+
+    /**
+     * @return milliseconds until requests may be made again, or -1 if not known
+     */
+    public long getRetryAfter()
+    {
+        return retryAfter;
+    }
+
 }
@@ -23,6 +23,7 @@ package org.alfresco.dropbox.service;
 import java.io.Serializable;
 import java.util.Map;
 
+import org.alfresco.dropbox.service.delta.DeltaPage;
 import org.alfresco.service.cmr.repository.ChildAssociationRef;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.namespace.QName;
@@ -75,6 +76,15 @@ public interface DropboxService
      */
     public Metadata getMetadata(NodeRef nodeRef);
     
+    /**
+     * Get the current users Dropbox metadata for the node from Dropbox, if it has changed since the metadata persisted for it
+     * 
+     * @param nodeRef
+     * @return
+     * @throws org.alfresco.dropbox.exceptions.NotModifiedException if the folder listing is the same as when its metadata was last persisted
+     */
+    public Metadata getMetadataIfChanged(NodeRef nodeRef);
+    
     /**
      * Get the Dropbox metadata for the node from Alfresco for the current user.
      * Lookup by nodes path.
@@ -133,6 +143,25 @@ public interface DropboxService
      */
     public Metadata putFile(NodeRef nodeRef, boolean overwrite);
     
+    /**
+     * Create a reference to the nodes file in the current users Dropbox, which other users can copy the file from.
+     * 
+     * @param nodeRef
+     * @return the copy reference
+     */
+    public String createCopyRef(NodeRef nodeRef);
+    
+    /**
+     * Copy the file a copy reference points to into the current users Dropbox. A copy never replaces a file, so if the
+     * node is already synced for the current user, or the copy fails, the node is sent with putFile instead.
+     * Location is set by path of current node.
+     * 
+     * @param nodeRef
+     * @param copyRef reference created by {@link #createCopyRef(NodeRef)}, usually by another user
+     * @return
+     */
+    public Metadata copyFromRef(NodeRef nodeRef, String copyRef);
+    
     /**
      * Create folder in the current users Dropbox account.
      * Location is set by path of current node. 
@@ -150,6 +179,14 @@ public interface DropboxService
      */
     public String getDropboxPath(NodeRef nodeRef);
     
+    /**
+     * Get the node a Dropbox path was synced from. The path is matched without regard to case.
+     * 
+     * @param path Dropbox path of a file or folder in a site
+     * @return the node, or null if there is no node at the path
+     */
+    public NodeRef getNodeRef(String path);
+    
     /**
      * Is the node synced to Dropbox for the current user.
      * 
@@ -191,4 +228,12 @@ public interface DropboxService
      * @return
      */
     public Metadata delete(String path);
+    
+    /**
+     * Get the changes to the synced sites in the current users Dropbox since cursor.
+     * 
+     * @param cursor the cursor of the previous page, or null to get everything
+     * @return
+     */
+    public DeltaPage getDelta(String cursor);
 }
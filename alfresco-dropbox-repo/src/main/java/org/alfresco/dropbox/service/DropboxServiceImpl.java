@@ -16,22 +16,45 @@
 package org.alfresco.dropbox.service;
 
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.alfresco.dropbox.DropboxConstants;
 import org.alfresco.dropbox.exceptions.DropboxAuthenticationException;
 import org.alfresco.dropbox.exceptions.DropboxClientException;
+import org.alfresco.dropbox.exceptions.DropboxUnavailableException;
 import org.alfresco.dropbox.exceptions.FileNotFoundException;
-import org.alfresco.dropbox.exceptions.FileSizeException;
+import org.alfresco.dropbox.exceptions.NotModifiedException;
+import org.alfresco.dropbox.exceptions.RateLimitException;
+import org.alfresco.dropbox.service.connection.DropboxCallExecutor;
+import org.alfresco.dropbox.service.connection.DropboxCallExecutor.DropboxCall;
+import org.alfresco.dropbox.service.connection.DropboxConnectionCache;
+import org.alfresco.dropbox.service.connection.DropboxContentClient;
+import org.alfresco.dropbox.service.delta.DeltaPage;
+import org.alfresco.dropbox.service.delta.DeltaPage.Entry;
+import org.alfresco.dropbox.service.download.ContentDownloader;
+import org.alfresco.dropbox.service.hash.ContentHasher;
+import org.alfresco.dropbox.service.metadata.KnownFolderCache;
+import org.alfresco.dropbox.service.metadata.MetadataCache;
+import org.alfresco.dropbox.service.metadata.MetadataCache.CachedMetadata;
+import org.alfresco.dropbox.service.metadata.MissingPathCache;
+import org.alfresco.dropbox.service.metadata.SingleFlight;
+import org.alfresco.dropbox.service.upload.ChunkedUploader;
 import org.alfresco.model.ContentModel;
 import org.alfresco.repo.admin.SysAdminParams;
 import org.alfresco.repo.policy.BehaviourFilter;
@@ -53,10 +76,11 @@ import org.alfresco.service.cmr.site.SiteService;
 import org.alfresco.service.namespace.QName;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.json.simple.JSONObject;
 import org.springframework.extensions.webscripts.Status;
 import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
 import org.springframework.social.dropbox.api.Dropbox;
-import org.springframework.social.dropbox.api.DropboxFile;
 import org.springframework.social.dropbox.api.DropboxUserProfile;
 import org.springframework.social.dropbox.api.Metadata;
 import org.springframework.social.dropbox.connect.DropboxConnectionFactory;
@@ -79,6 +103,11 @@ public class DropboxServiceImpl
 
     private static Log                    logger    = LogFactory.getLog(DropboxServiceImpl.class);
 
+    private static final String           SITES     = "/Sites";
+
+    // Format of the modified date in Dropbox metadata
+    private static final String           MODIFIED  = "EEE, dd MMM yyyy HH:mm:ss Z";
+
     private PersonService                 personService;
     private NodeService                   nodeService;
     private PermissionService             permissionService;
@@ -90,8 +119,38 @@ public class DropboxServiceImpl
     private OAuth1CredentialsStoreService oauth1CredentialsStoreService;
 
     private DropboxConnectionFactory      connectionFactory;
+    private DropboxConnectionCache        connectionCache;
+    private DropboxContentClient          contentClient;
+    private ChunkedUploader               chunkedUploader;
+    private ContentDownloader             contentDownloader;
+    private ContentHasher                 contentHasher;
+    private DropboxCallExecutor           callExecutor;
+    private MetadataCache                 metadataCache;
+    private MissingPathCache              missingPaths;
+    private KnownFolderCache              knownFolders;
+
+    // Files larger than this are sent in chunks
+    private long                          chunkedUploadThreshold = 8388608L;
+
+    // Content hashes of uploads, by node and user, waiting for persistMetadata to record them
+    private final Map<String, String[]>   pendingContentHashes   = Collections.synchronizedMap(new LinkedHashMap<String, String[]>()
+    {
+        private static final long serialVersionUID = -6803713584412357310L;
+
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest)
+        {
+            return size() > 1000;
+        }
+    });
+
+    // Concurrent getMetadata calls for the same user, path and hash share one request
+    private final SingleFlight<Metadata>  metadataRequests       = new SingleFlight<Metadata>();
 
-    private static final String           NOT_FOUND = "404 Not Found";
+    private final AtomicLong              uploadsSkipped         = new AtomicLong();
+    private final AtomicLong              copiesFromRef          = new AtomicLong();
+    private final AtomicLong              copyFallbacks          = new AtomicLong();
 
 
     public void setPersonService(PersonService personService)
@@ -148,6 +207,110 @@ public class DropboxServiceImpl
     }
 
 
+    public void setConnectionCache(DropboxConnectionCache connectionCache)
+    {
+        this.connectionCache = connectionCache;
+    }
+
+
+    public void setContentClient(DropboxContentClient contentClient)
+    {
+        this.contentClient = contentClient;
+    }
+
+
+    public void setChunkedUploader(ChunkedUploader chunkedUploader)
+    {
+        this.chunkedUploader = chunkedUploader;
+    }
+
+
+    public void setContentDownloader(ContentDownloader contentDownloader)
+    {
+        this.contentDownloader = contentDownloader;
+    }
+
+
+    public void setContentHasher(ContentHasher contentHasher)
+    {
+        this.contentHasher = contentHasher;
+    }
+
+
+    public void setCallExecutor(DropboxCallExecutor callExecutor)
+    {
+        this.callExecutor = callExecutor;
+    }
+
+
+    public void setMetadataCache(MetadataCache metadataCache)
+    {
+        this.metadataCache = metadataCache;
+    }
+
+
+    public void setMissingPaths(MissingPathCache missingPaths)
+    {
+        this.missingPaths = missingPaths;
+    }
+
+
+    public void setKnownFolders(KnownFolderCache knownFolders)
+    {
+        this.knownFolders = knownFolders;
+    }
+
+
+    /**
+     * Number of uploads skipped because the file in Dropbox already had the content
+     *
+     * @return
+     */
+    public long getUploadsSkipped()
+    {
+        return uploadsSkipped.get();
+    }
+
+
+    /**
+     * Number of files copied into a users Dropbox from a copy reference instead of being uploaded
+     *
+     * @return
+     */
+    public long getCopiesFromRef()
+    {
+        return copiesFromRef.get();
+    }
+
+
+    /**
+     * Number of copies from a copy reference that failed and were uploaded instead
+     *
+     * @return
+     */
+    public long getCopyFallbacks()
+    {
+        return copyFallbacks.get();
+    }
+
+
+    /**
+     * Number of getMetadata calls that shared a request already being made for the same user, path and hash
+     *
+     * @return
+     */
+    public long getMetadataRequestsShared()
+    {
+        return metadataRequests.getShared();
+    }
+
+
+    public void setChunkedUploadThreshold(long chunkedUploadThreshold)
+    {
+        this.chunkedUploadThreshold = chunkedUploadThreshold;
+    }
+
+
     public void setOauth1CredentialsStoreService(OAuth1CredentialsStoreService oauth1CredentialsStoreService)
     {
         this.oauth1CredentialsStoreService = oauth1CredentialsStoreService;
@@ -159,34 +322,53 @@ public class DropboxServiceImpl
     private Connection<Dropbox> getConnection()
         throws DropboxAuthenticationException
     {
-        Connection<Dropbox> connection = null;
+        String user = AuthenticationUtil.getRunAsUser();
 
-        OAuth1CredentialsInfo credentialsInfo = oauth1CredentialsStoreService.getPersonalOAuth1Credentials(DropboxConstants.REMOTE_SYSTEM);
+        Connection<Dropbox> connection = connectionCache.get(user);
 
-        if (credentialsInfo != null)
+        if (connection == null)
         {
-            OAuthToken accessToken = new OAuthToken(credentialsInfo.getOAuthToken(), credentialsInfo.getOAuthSecret());
+            OAuth1CredentialsInfo credentialsInfo = oauth1CredentialsStoreService.getPersonalOAuth1Credentials(DropboxConstants.REMOTE_SYSTEM);
 
-            try
+            if (credentialsInfo != null)
             {
-                connection = connectionFactory.createConnection(accessToken);
-            }
-            catch (HttpClientErrorException hcee)
-            {
-                if (hcee.getStatusCode().ordinal() == Status.STATUS_FORBIDDEN)
+                OAuthToken accessToken = new OAuthToken(credentialsInfo.getOAuthToken(), credentialsInfo.getOAuthSecret());
+
+                try
                 {
-                    throw new DropboxAuthenticationException();
+                    connection = connectionFactory.createConnection(accessToken);
                 }
+                catch (HttpClientErrorException hcee)
+                {
+                    if (hcee.getStatusCode().value() == Status.STATUS_FORBIDDEN)
+                    {
+                        throw new DropboxAuthenticationException();
+                    }
 
+                }
+            }
+
+            if (connection != null)
+            {
+                connectionCache.put(user, connection);
             }
-        }
 
-        logger.debug("Dropbox Connection made for " + AuthenticationUtil.getRunAsUser());
+            logger.debug("Dropbox Connection made for " + user + ". Connection cache hits: " + connectionCache.getHits()
+                         + ", misses: " + connectionCache.getMisses());
+        }
 
         return connection;
     }
 
 
+    private OAuthToken getAccessToken(Connection<Dropbox> connection)
+    {
+        ConnectionData data = connection.createData();
+
+        return new OAuthToken(data.getAccessToken(), data.getSecret());
+    }
+
+
     // Dropbox Authentication
 
     public String getAuthorizeUrl(String callbackUrl)
@@ -252,6 +434,9 @@ public class DropboxServiceImpl
 
     private void persistTokens(OAuthToken token, boolean complete)
     {
+        // Any connection made with the old tokens is no longer valid once the new ones are committed
+        connectionCache.invalidateAfterCommit(AuthenticationUtil.getRunAsUser());
+
         OAuth1CredentialsInfo credentialsInfo = oauth1CredentialsStoreService.getPersonalOAuth1Credentials(DropboxConstants.REMOTE_SYSTEM);
 
         oauth1CredentialsStoreService.storePersonalOAuth1Credentials(DropboxConstants.REMOTE_SYSTEM, token.getValue(), token.getSecret());
@@ -271,8 +456,14 @@ public class DropboxServiceImpl
     {
         DropboxUserProfile profile;
 
-        Connection<Dropbox> connection = this.getConnection();
-        profile = connection.getApi().getUserProfile();
+        final Connection<Dropbox> connection = this.getConnection();
+        profile = callExecutor.execute("user profile", true, new DropboxCall<DropboxUserProfile>()
+        {
+            public DropboxUserProfile execute()
+            {
+                return connection.getApi().getUserProfile();
+            }
+        });
 
         logger.debug("Get Dropbox User Profile for " + AuthenticationUtil.getRunAsUser());
 
@@ -284,19 +475,92 @@ public class DropboxServiceImpl
 
     public Metadata getMetadata(NodeRef nodeRef)
     {
-        String hash = null;
+        String path = getDropboxPath(nodeRef) + "/" + nodeService.getProperty(nodeRef, ContentModel.PROP_NAME);
+
+        return getPathMetadata(path);
+    }
+
+
+    public Metadata getMetadataIfChanged(NodeRef nodeRef)
+    {
+        String path = getDropboxPath(nodeRef) + "/" + nodeService.getProperty(nodeRef, ContentModel.PROP_NAME);
+
+        NodeRef userMetadataRef = getUserMetadata(nodeRef);
+        String persistedHash = userMetadataRef != null ? (String)nodeService.getProperty(userMetadataRef, DropboxConstants.Model.PROP_HASH) : null;
+
+        return getPathMetadata(path, persistedHash);
+    }
+
 
-        // Get the hash if it exists
-        if (nodeService.getProperty(nodeRef, DropboxConstants.Model.PROP_HASH) != null)
+    private Metadata getPathMetadata(String path)
+    {
+        return getPathMetadata(path, null);
+    }
+
+
+    /**
+     * @param path
+     * @param knownHash the hash of the listing the caller already has, or null if it has none
+     * @return the metadata for path
+     * @throws NotModifiedException if the listing still has knownHash
+     */
+    private Metadata getPathMetadata(final String path, String knownHash)
+    {
+        final String user = AuthenticationUtil.getRunAsUser();
+
+        CachedMetadata cached = metadataCache.get(user, path);
+
+        if (cached != null && cached.isFresh())
         {
-            hash = nodeService.getProperty(nodeRef, DropboxConstants.Model.PROP_HASH).toString();
+            logger.debug("Get Metadata for " + path + " from the cache");
+
+            if (knownHash != null && knownHash.equals(cached.getHash()))
+            {
+                throw new NotModifiedException();
+            }
+
+            return cached.getMetadata();
         }
 
-        String path = getDropboxPath(nodeRef) + "/" + nodeService.getProperty(nodeRef, ContentModel.PROP_NAME);
+        // Revalidate the cached listing by its hash, or else the listing the caller has. Without either the whole listing is
+        // fetched, so there is always metadata to return.
+        final String hash = cached != null ? cached.getHash() : knownHash;
 
         Metadata metadata;
-        Connection<Dropbox> connection = this.getConnection();
-        metadata = connection.getApi().getItemMetadata(path, hash);
+        final Connection<Dropbox> connection = this.getConnection();
+
+        try
+        {
+            // The same folder is often asked for by many threads at once, for instance for each child added to it
+            metadata = metadataRequests.execute(user + "|" + path + "|" + hash, new Callable<Metadata>()
+            {
+                public Metadata call()
+                {
+                    Metadata fetched = getItemMetadata(connection, path, hash);
+                    metadataCache.put(user, path, fetched);
+                    rememberFolders(user, fetched);
+
+                    return fetched;
+                }
+            });
+        }
+        catch (NotModifiedException nme)
+        {
+            if (cached == null)
+            {
+                // Unchanged from the listing the caller has
+                throw nme;
+            }
+
+            metadataCache.revalidated(cached);
+
+            if (knownHash != null && knownHash.equals(cached.getHash()))
+            {
+                throw nme;
+            }
+
+            metadata = cached.getMetadata();
+        }
 
         logger.debug("Get Metadata for " + path + ": " + this.metadataAsJSON(metadata));
 
@@ -307,12 +571,20 @@ public class DropboxServiceImpl
     public Metadata copy(NodeRef originalNodeRef, NodeRef newNodeRef)
     {
         Metadata metadata;
-        Connection<Dropbox> connection = this.getConnection();
+        final Connection<Dropbox> connection = this.getConnection();
 
-        String from_path = getDropboxPath(originalNodeRef) + "/" + nodeService.getProperty(originalNodeRef, ContentModel.PROP_NAME);
-        String to_path = getDropboxPath(newNodeRef) + "/" + nodeService.getProperty(newNodeRef, ContentModel.PROP_NAME);
+        final String from_path = getDropboxPath(originalNodeRef) + "/" + nodeService.getProperty(originalNodeRef, ContentModel.PROP_NAME);
+        final String to_path = getDropboxPath(newNodeRef) + "/" + nodeService.getProperty(newNodeRef, ContentModel.PROP_NAME);
 
-        metadata = connection.getApi().copy(from_path, to_path);
+        // Not idempotent: a second copy fails as the first one created the file
+        metadata = callExecutor.execute("copy " + from_path, false, new DropboxCall<Metadata>()
+        {
+            public Metadata execute()
+            {
+                return connection.getApi().copy(from_path, to_path);
+            }
+        });
+        written(to_path);
 
         logger.debug("Copy " + from_path + " to " + to_path + ". New Metadata: " + this.metadataAsJSON(metadata));
 
@@ -323,11 +595,61 @@ public class DropboxServiceImpl
     public Metadata createFolder(NodeRef nodeRef)
     {
         Metadata metadata;
-        Connection<Dropbox> connection = this.getConnection();
+        final Connection<Dropbox> connection = this.getConnection();
 
-        String path = getDropboxPath(nodeRef) + "/" + nodeService.getProperty(nodeRef, ContentModel.PROP_NAME);
+        final String path = getDropboxPath(nodeRef) + "/" + nodeService.getProperty(nodeRef, ContentModel.PROP_NAME);
+
+        if (knownFolders.isKnown(AuthenticationUtil.getRunAsUser(), path))
+        {
+            try
+            {
+                metadata = getPathMetadata(path);
+
+                if (!metadata.isDeleted())
+                {
+                    logger.debug("Create Folder at " + path + " skipped. It already exists.");
+
+                    return metadata;
+                }
+            }
+            catch (RestClientException rce)
+            {
+                if (DropboxCallExecutor.getStatus(rce) != Status.STATUS_NOT_FOUND)
+                {
+                    throw rce;
+                }
+            }
+
+            // Removed from Dropbox since it was known to exist
+            knownFolders.forget(AuthenticationUtil.getRunAsUser(), path);
+        }
 
-        metadata = connection.getApi().createFolder(path);
+        try
+        {
+            metadata = callExecutor.execute("create folder " + path, false, new DropboxCall<Metadata>()
+            {
+                public Metadata execute()
+                {
+                    return connection.getApi().createFolder(path);
+                }
+            });
+        }
+        catch (HttpClientErrorException hcee)
+        {
+            if (hcee.getStatusCode().value() != Status.STATUS_FORBIDDEN)
+            {
+                throw hcee;
+            }
+
+            // The folder already exists
+            knownFolders.exists(AuthenticationUtil.getRunAsUser(), path);
+
+            return getPathMetadata(path);
+        }
+
+        // Dropbox creates any missing folders above the new one as well
+        written(path);
+        knownFolders.exists(AuthenticationUtil.getRunAsUser(), path);
 
         logger.debug("Create Folder at " + path + ". New Metadata: " + this.metadataAsJSON(metadata));
 
@@ -342,15 +664,22 @@ public class DropboxServiceImpl
 
         String path = getDropboxPath(nodeRef) + "/" + nodeService.getProperty(nodeRef, ContentModel.PROP_NAME);
 
+        if (missingPaths.isMissing(AuthenticationUtil.getRunAsUser(), path))
+        {
+            logger.debug("Delete " + path + " skipped. It is already gone.");
+
+            throw new FileNotFoundException(nodeRef);
+        }
+
         try
         {
-            metadata = connection.getApi().delete(path);
+            metadata = deletePath(connection, path);
 
             logger.debug("Delete " + path + ". Deleted Metadata: " + this.metadataAsJSON(metadata));
         }
         catch (RestClientException rce)
         {
-            if (rce.getMessage().equals(NOT_FOUND))
+            if (DropboxCallExecutor.getStatus(rce) == Status.STATUS_NOT_FOUND)
             {
                 throw new FileNotFoundException(nodeRef);
             }
@@ -369,15 +698,22 @@ public class DropboxServiceImpl
         Metadata metadata;
         Connection<Dropbox> connection = this.getConnection();
 
+        if (missingPaths.isMissing(AuthenticationUtil.getRunAsUser(), path))
+        {
+            logger.debug("Delete " + path + " skipped. It is already gone.");
+
+            throw new FileNotFoundException();
+        }
+
         try
         {
-            metadata = connection.getApi().delete(path);
+            metadata = deletePath(connection, path);
 
             logger.debug("Delete " + path + ". Deleted Metadata: " + this.metadataAsJSON(metadata));
         }
         catch (RestClientException rce)
         {
-            if (rce.getMessage().equals(NOT_FOUND))
+            if (DropboxCallExecutor.getStatus(rce) == Status.STATUS_NOT_FOUND)
             {
                 throw new FileNotFoundException();
             }
@@ -391,17 +727,78 @@ public class DropboxServiceImpl
     }
 
 
+    public DeltaPage getDelta(final String cursor)
+    {
+        DeltaPage delta;
+        Connection<Dropbox> connection = this.getConnection();
+
+        final OAuthToken accessToken = getAccessToken(connection);
+        final String pathPrefix = "/" + sysAdminParams.getShareHost() + SITES;
+
+        // Asking again with the same cursor returns the same page
+        JSONObject response = callExecutor.execute("delta", true, new DropboxCall<JSONObject>()
+        {
+            public JSONObject execute()
+                throws IOException
+            {
+                return contentClient.delta(accessToken, cursor, pathPrefix);
+            }
+        });
+
+        delta = new DeltaPage(response);
+
+        // What was cached about the changed paths is out of date
+        String user = AuthenticationUtil.getRunAsUser();
+
+        if (delta.isReset())
+        {
+            metadataCache.invalidate(user, pathPrefix);
+            knownFolders.forget(user, pathPrefix);
+        }
+
+        for (Entry entry : delta.getEntries())
+        {
+            if (entry.isDeleted())
+            {
+                removed(entry.getPath());
+            }
+            else
+            {
+                written(entry.getPath());
+
+                if (entry.isDir())
+                {
+                    knownFolders.exists(user, entry.getPath());
+                }
+            }
+        }
+
+        logger.debug("Get Delta for " + user + ": " + delta.getEntries().size() + " entries, reset " + delta.isReset()
+                     + ", has more " + delta.hasMore());
+
+        return delta;
+    }
+
+
     public Metadata move(ChildAssociationRef oldChildAssocRef, ChildAssociationRef newChildAssocRef)
     {
         Metadata metadata;
-        Connection<Dropbox> connection = this.getConnection();
+        final Connection<Dropbox> connection = this.getConnection();
 
-        String from_path = getDropboxPath(oldChildAssocRef.getParentRef()) + "/"
-                           + nodeService.getProperty(oldChildAssocRef.getChildRef(), ContentModel.PROP_NAME);
-        String to_path = getDropboxPath(newChildAssocRef.getChildRef()) + "/"
-                         + nodeService.getProperty(newChildAssocRef.getChildRef(), ContentModel.PROP_NAME);
+        final String from_path = getDropboxPath(oldChildAssocRef.getParentRef()) + "/"
+                                 + nodeService.getProperty(oldChildAssocRef.getChildRef(), ContentModel.PROP_NAME);
+        final String to_path = getDropboxPath(newChildAssocRef.getChildRef()) + "/"
+                               + nodeService.getProperty(newChildAssocRef.getChildRef(), ContentModel.PROP_NAME);
 
-        metadata = connection.getApi().move(from_path, to_path);
+        metadata = callExecutor.execute("move " + from_path, false, new DropboxCall<Metadata>()
+        {
+            public Metadata execute()
+            {
+                return connection.getApi().move(from_path, to_path);
+            }
+        });
+        removed(from_path);
+        written(to_path);
 
         logger.debug("Move " + from_path + " to " + to_path + ". New Metadata: " + this.metadataAsJSON(metadata));
 
@@ -409,28 +806,45 @@ public class DropboxServiceImpl
     }
 
 
-    public Metadata getFile(NodeRef nodeRef)
+    public Metadata getFile(final NodeRef nodeRef)
     {
-        Metadata metadata;
+        Metadata metadata = null;
         Connection<Dropbox> connection = this.getConnection();
 
-        String path = getDropboxPath(nodeRef) + "/" + nodeService.getProperty(nodeRef, ContentModel.PROP_NAME);
-
-        DropboxFile dropboxFile = connection.getApi().getFile(path);
+        final String path = getDropboxPath(nodeRef) + "/" + nodeService.getProperty(nodeRef, ContentModel.PROP_NAME);
 
         try
         {
-            ContentWriter writer = contentService.getWriter(nodeRef, ContentModel.PROP_CONTENT, true);
-            writer.guessEncoding();
-            writer.setMimetype(dropboxFile.getContentType().split(";")[0]);
-            writer.putContent(dropboxFile.getInputStream());
+            final ContentWriter writer = contentService.getWriter(nodeRef, ContentModel.PROP_CONTENT, true);
+            final OAuthToken accessToken = getAccessToken(connection);
+
+            // Not retried here, as the writer may already have been written to. An interrupted download resumes next time.
+            JSONObject fileMetadata = callExecutor.execute("download " + path, false, new DropboxCall<JSONObject>()
+            {
+                public JSONObject execute()
+                    throws IOException
+                {
+                    // Mimetype and encoding are set by the downloader as the content is copied
+                    return contentDownloader.download(accessToken, nodeRef, path, writer);
+                }
+            });
+
+            // The metadata sent with the content is for the rev downloaded. A cached lookup could be for an older one.
+            if (fileMetadata != null)
+            {
+                metadata = toMetadata(fileMetadata);
+            }
         }
         catch (ContentIOException cio)
         {
             cio.printStackTrace();
         }
 
-        metadata = this.getMetadata(nodeRef);
+        if (metadata == null)
+        {
+            metadataCache.invalidate(AuthenticationUtil.getRunAsUser(), path);
+            metadata = this.getMetadata(nodeRef);
+        }
 
         logger.debug("Get File " + path + ". File Metadata: " + this.metadataAsJSON(metadata));
 
@@ -438,26 +852,89 @@ public class DropboxServiceImpl
     }
 
 
-    public Metadata putFile(NodeRef nodeRef, boolean overwrite)
+    public Metadata putFile(final NodeRef nodeRef, final boolean overwrite)
     {
-        // 150 MB
-        final long MAX_FILE_SIZE = 157286400L;
-
         Metadata metadata = null;
         Connection<Dropbox> connection = this.getConnection();
 
-        ContentReader contentReader = contentService.getReader(nodeRef, ContentModel.PROP_CONTENT);
+        final ContentReader contentReader = contentService.getReader(nodeRef, ContentModel.PROP_CONTENT);
+
+        final String path = getDropboxPath(nodeRef) + "/" + nodeService.getProperty(nodeRef, ContentModel.PROP_NAME);
+        final OAuthToken accessToken = getAccessToken(connection);
 
         try
         {
-            if (contentReader.getSize() < MAX_FILE_SIZE)
+            String contentHash;
+
+            if (overwrite)
+            {
+                contentHash = contentHasher.getContentHash(contentReader);
+                metadata = getUnchangedMetadata(connection, nodeRef, path, contentHash);
+
+                if (metadata != null)
+                {
+                    uploadsSkipped.incrementAndGet();
+
+                    logger.debug("Put File " + path + " skipped. Content is unchanged at rev " + metadata.getRev());
+
+                    return metadata;
+                }
+            }
+            else
             {
-                String path = getDropboxPath(nodeRef) + "/" + nodeService.getProperty(nodeRef, ContentModel.PROP_NAME);
-                metadata = connection.getApi().putFile(path, getBytes(contentReader), null, overwrite, null);
+                // A new file has nothing to compare the hash with. One already known is kept for the next update.
+                contentHash = contentHasher.getCachedContentHash(contentReader);
+            }
+
+            JSONObject uploaded;
+
+            if (contentReader.getSize() > chunkedUploadThreshold)
+            {
+                // Large files go up in resumable chunks. There is no size limit on a chunked upload. The uploader retries
+                // each chunk itself.
+                uploaded = callExecutor.execute("chunked upload " + path, false, new DropboxCall<JSONObject>()
+                {
+                    public JSONObject execute()
+                        throws IOException
+                    {
+                        return chunkedUploader.upload(accessToken, nodeRef, contentReader, path, overwrite);
+                    }
+                });
             }
             else
             {
-                throw new FileSizeException();
+                // An overwriting upload can be sent again; otherwise Dropbox would store a renamed second copy
+                uploaded = callExecutor.execute("upload " + path, overwrite, new DropboxCall<JSONObject>()
+                {
+                    public JSONObject execute()
+                        throws IOException
+                    {
+                        // Stream the content straight into the request body rather than loading it into memory
+                        ContentReader reader = contentReader.getReader();
+                        InputStream inputStream = reader.getContentInputStream();
+
+                        try
+                        {
+                            return contentClient.putFile(accessToken, path, inputStream, reader.getSize(), reader.getMimetype(), overwrite);
+                        }
+                        finally
+                        {
+                            inputStream.close();
+                        }
+                    }
+                });
+            }
+
+            // If overwrite is false Dropbox may have renamed the file, so the metadata it answers with has the path it was
+            // stored at
+            metadata = toMetadata(uploaded);
+            written(metadata.getPath());
+            // Dropbox created any missing folders above the file
+            rememberFolders(AuthenticationUtil.getRunAsUser(), metadata);
+
+            if (contentHash != null)
+            {
+                rememberContentHash(nodeRef, metadata.getRev(), contentHash);
             }
         }
         catch (IOException ioe)
@@ -465,52 +942,277 @@ public class DropboxServiceImpl
             throw new DropboxClientException(ioe.getMessage());
         }
 
-        logger.debug("Put File " + getDropboxPath(nodeRef) + "/" + nodeService.getProperty(nodeRef, ContentModel.PROP_NAME)
-                     + ". File Metadata " + this.metadataAsJSON(metadata));
+        logger.debug("Put File " + path + ". File Metadata " + this.metadataAsJSON(metadata));
 
         return metadata;
     }
 
 
-    public void persistMetadata(Metadata metadata, NodeRef nodeRef)
+    public String createCopyRef(NodeRef nodeRef)
     {
+        Connection<Dropbox> connection = this.getConnection();
 
-        List<ChildAssociationRef> dropboxAssoc = nodeService.getChildAssocs(nodeRef, DropboxConstants.Model.ASSOC_DROPBOX, DropboxConstants.Model.ASSOC_DROPBOX);
+        final String path = getDropboxPath(nodeRef) + "/" + nodeService.getProperty(nodeRef, ContentModel.PROP_NAME);
+        final OAuthToken accessToken = getAccessToken(connection);
 
-        ChildAssociationRef usersAssocRef;
-        if (dropboxAssoc.size() == 0)
+        String copyRef = callExecutor.execute("copy ref " + path, true, new DropboxCall<String>()
         {
-            usersAssocRef = nodeService.createNode(nodeRef, DropboxConstants.Model.ASSOC_DROPBOX, DropboxConstants.Model.ASSOC_DROPBOX, DropboxConstants.Model.TYPE_USERS);
+            public String execute()
+                throws IOException
+            {
+                return contentClient.createCopyRef(accessToken, path);
+            }
+        });
+
+        logger.debug("Create Copy Ref for " + path);
+
+        return copyRef;
+    }
+
+
+    public Metadata copyFromRef(NodeRef nodeRef, final String copyRef)
+    {
+        Metadata metadata;
+        final Connection<Dropbox> connection = this.getConnection();
+
+        ContentReader contentReader = contentService.getReader(nodeRef, ContentModel.PROP_CONTENT);
+
+        final String path = getDropboxPath(nodeRef) + "/" + nodeService.getProperty(nodeRef, ContentModel.PROP_NAME);
+        final OAuthToken accessToken = getAccessToken(connection);
+        DropboxCall<JSONObject> copy = new DropboxCall<JSONObject>()
+        {
+            public JSONObject execute()
+                throws IOException
+            {
+                return contentClient.copyFromRef(accessToken, copyRef, path);
+            }
+        };
+
+        NodeRef userMetadataRef = getUserMetadata(nodeRef);
+
+        if (userMetadataRef != null && nodeService.getProperty(userMetadataRef, DropboxConstants.Model.PROP_REV) != null)
+        {
+            // A copy will not replace a file the user already has, so it is sent straight away rather than after a failed copy
+            logger.debug("Copy from Copy Ref to " + path + " not tried. The file is already synced.");
+
+            return putFile(nodeRef, true);
         }
-        else
+
+        try
         {
-            usersAssocRef = dropboxAssoc.get(0);
+            // Nothing to compare the hash with. One already known, usually from the user who sent the content, is kept for
+            // the next update.
+            String contentHash = contentHasher.getCachedContentHash(contentReader);
+
+            // A copy will not replace a file that is at the path but not synced. Dropbox answers that with a 403, and the
+            // file is then overwritten in place by an upload, keeping its revisions.
+            metadata = toMetadata(callExecutor.execute("copy from ref to " + path, false, copy));
+            written(path);
+
+            if (contentHash != null)
+            {
+                rememberContentHash(nodeRef, metadata.getRev(), contentHash);
+            }
+            copiesFromRef.incrementAndGet();
+
+            logger.debug("Copy from Copy Ref to " + path + ". File Metadata " + this.metadataAsJSON(metadata));
+        }
+        catch (IOException ioe)
+        {
+            metadata = putFileAfterFailedCopy(nodeRef, path, ioe);
+        }
+        catch (RestClientException rce)
+        {
+            metadata = putFileAfterFailedCopy(nodeRef, path, rce);
+        }
+        catch (RateLimitException rle)
+        {
+            // Uploading instead would only make more requests
+            throw rle;
+        }
+        catch (DropboxUnavailableException due)
+        {
+            throw due;
+        }
+        catch (DropboxClientException dce)
+        {
+            metadata = putFileAfterFailedCopy(nodeRef, path, dce);
         }
 
-        List<ChildAssociationRef> usersAssoc = nodeService.getChildAssocs(usersAssocRef.getChildRef(), DropboxConstants.Model.ASSOC_USER_METADATA, QName.createQName(DropboxConstants.Model.ORG_DROPBOX_MODEL_1_0_URI, AuthenticationUtil.getRunAsUser()));
+        return metadata;
+    }
 
-        ChildAssociationRef userAssocRef;
-        if (usersAssoc.size() == 0)
+
+    private Metadata putFileAfterFailedCopy(NodeRef nodeRef, String path, Exception e)
+    {
+        copyFallbacks.incrementAndGet();
+
+        logger.debug("Copy from Copy Ref to " + path + " failed: " + e.getMessage() + ". Uploading instead.");
+
+        return putFile(nodeRef, true);
+    }
+
+
+    /**
+     * If the content hash matches the one recorded when the node was last uploaded by the current user, and the file in
+     * Dropbox is still at the rev that upload created, the file in Dropbox already has this content.
+     * 
+     * @return the Dropbox metadata of the file if it is unchanged, otherwise null
+     */
+    private Metadata getUnchangedMetadata(Connection<Dropbox> connection, NodeRef nodeRef, String path, String contentHash)
+    {
+        Metadata metadata = null;
+
+        NodeRef userMetadataRef = getUserMetadata(nodeRef);
+
+        if (userMetadataRef != null && contentHash.equals(nodeService.getProperty(userMetadataRef, DropboxConstants.Model.PROP_CONTENT_HASH)))
         {
-            userAssocRef = nodeService.createNode(usersAssocRef.getChildRef(), DropboxConstants.Model.ASSOC_USER_METADATA, QName.createQName(DropboxConstants.Model.ORG_DROPBOX_MODEL_1_0_URI, AuthenticationUtil.getRunAsUser()), DropboxConstants.Model.TYPE_METADATA);
+            Serializable rev = nodeService.getProperty(userMetadataRef, DropboxConstants.Model.PROP_REV);
+
+            try
+            {
+                Metadata remote = getItemMetadata(connection, path, null);
+
+                if (!remote.isDeleted() && remote.getRev().equals(rev))
+                {
+                    metadata = remote;
+                }
+            }
+            catch (HttpClientErrorException hcee)
+            {
+                if (hcee.getStatusCode().value() != Status.STATUS_NOT_FOUND)
+                {
+                    throw hcee;
+                }
+            }
         }
-        else
+
+        return metadata;
+    }
+
+
+    private Metadata getItemMetadata(final Connection<Dropbox> connection, final String path, final String hash)
+    {
+        return callExecutor.execute("metadata " + path, true, new DropboxCall<Metadata>()
         {
-            userAssocRef = usersAssoc.get(0);
+            public Metadata execute()
+            {
+                return connection.getApi().getItemMetadata(path, hash);
+            }
+        });
+    }
+
+
+    private Metadata deletePath(final Connection<Dropbox> connection, final String path)
+    {
+        try
+        {
+            Metadata metadata = callExecutor.execute("delete " + path, true, new DropboxCall<Metadata>()
+            {
+                public Metadata execute()
+                {
+                    return connection.getApi().delete(path);
+                }
+            });
+
+            removed(path);
+
+            return metadata;
         }
+        catch (RestClientException rce)
+        {
+            if (DropboxCallExecutor.getStatus(rce) == Status.STATUS_NOT_FOUND)
+            {
+                removed(path);
+            }
+            else
+            {
+                metadataCache.invalidate(AuthenticationUtil.getRunAsUser(), path);
+            }
+
+            throw rce;
+        }
+    }
+
+
+    /**
+     * Something was created or uploaded at path by the current user
+     */
+    private void written(String path)
+    {
+        String user = AuthenticationUtil.getRunAsUser();
+
+        metadataCache.invalidate(user, path);
+        missingPaths.created(user, path);
+    }
+
+
+    /**
+     * Path is no longer in the current users Dropbox
+     */
+    private void removed(String path)
+    {
+        String user = AuthenticationUtil.getRunAsUser();
+
+        metadataCache.invalidate(user, path);
+        missingPaths.missing(user, path);
+        knownFolders.forget(user, path);
+    }
+
+
+    /**
+     * Remember the folders in a listing, and the folders above the item listed
+     */
+    private void rememberFolders(String user, Metadata metadata)
+    {
+        if (metadata.isDeleted())
+        {
+            return;
+        }
+
+        String path = metadata.getPath();
+        knownFolders.exists(user, metadata.isDir() ? path : path.substring(0, Math.max(path.lastIndexOf('/'), 0)));
+
+        if (metadata.getContents() != null)
+        {
+            for (Metadata child : metadata.getContents())
+            {
+                if (child.isDir() && !child.isDeleted())
+                {
+                    knownFolders.exists(user, child.getPath());
+                }
+            }
+        }
+    }
+
+
+    public void persistMetadata(Metadata metadata, NodeRef nodeRef)
+    {
+        NodeRef userMetadataRef = getOrCreateUserMetadata(nodeRef);
 
         Map<QName, Serializable> properties = new HashMap<QName, Serializable>();
         properties.put(DropboxConstants.Model.PROP_REV, metadata.getRev());
         // properties.put(DropboxConstants.Model.PROP_REVISION, metadata.get)
         properties.put(ContentModel.PROP_MODIFIED, metadata.getModified());
 
+        // The content hash only describes the rev it was recorded with
+        String[] pendingContentHash = pendingContentHashes.remove(nodeRef + "/" + AuthenticationUtil.getRunAsUser());
+        if (pendingContentHash != null && pendingContentHash[0].equals(metadata.getRev()))
+        {
+            properties.put(DropboxConstants.Model.PROP_CONTENT_HASH, pendingContentHash[1]);
+        }
+        else if (metadata.getRev() != null && !metadata.getRev().equals(nodeService.getProperty(userMetadataRef, DropboxConstants.Model.PROP_REV)))
+        {
+            properties.put(DropboxConstants.Model.PROP_CONTENT_HASH, null);
+        }
+
         // If a hash is returned we might need to update it
         if (nodeService.getType(nodeRef).equals(ContentModel.TYPE_FOLDER) && metadata.getHash() != null)
         {
             // If the hash is not the same update it
-            if (nodeService.getProperty(userAssocRef.getChildRef(), DropboxConstants.Model.PROP_HASH) != null)
+            if (nodeService.getProperty(userMetadataRef, DropboxConstants.Model.PROP_HASH) != null)
             {
-                if (!nodeService.getProperty(userAssocRef.getChildRef(), DropboxConstants.Model.PROP_HASH).equals(metadata.getHash()))
+                if (!nodeService.getProperty(userMetadataRef, DropboxConstants.Model.PROP_HASH).equals(metadata.getHash()))
                 {
                     properties.put(DropboxConstants.Model.PROP_HASH, metadata.getHash());
                 }
@@ -521,12 +1223,76 @@ public class DropboxServiceImpl
             }
         }
 
-        behaviourFilter.disableBehaviour(userAssocRef.getChildRef(), ContentModel.ASPECT_AUDITABLE);
-        nodeService.addProperties(userAssocRef.getChildRef(), properties);
+        behaviourFilter.disableBehaviour(userMetadataRef, ContentModel.ASPECT_AUDITABLE);
+        nodeService.addProperties(userMetadataRef, properties);
 
     }
 
 
+    /**
+     * Remember the content hash of what was uploaded along with the rev Dropbox gave it, for persistMetadata to record. Nothing
+     * is written to the repository here, so uploads can run in read only transactions.
+     * 
+     * @param nodeRef
+     * @param rev
+     * @param contentHash
+     */
+    private void rememberContentHash(NodeRef nodeRef, String rev, String contentHash)
+    {
+        pendingContentHashes.put(nodeRef + "/" + AuthenticationUtil.getRunAsUser(), new String[] { rev, contentHash });
+    }
+
+
+    private NodeRef getOrCreateUserMetadata(NodeRef nodeRef)
+    {
+        List<ChildAssociationRef> dropboxAssoc = nodeService.getChildAssocs(nodeRef, DropboxConstants.Model.ASSOC_DROPBOX, DropboxConstants.Model.ASSOC_DROPBOX);
+
+        ChildAssociationRef usersAssocRef;
+        if (dropboxAssoc.size() == 0)
+        {
+            usersAssocRef = nodeService.createNode(nodeRef, DropboxConstants.Model.ASSOC_DROPBOX, DropboxConstants.Model.ASSOC_DROPBOX, DropboxConstants.Model.TYPE_USERS);
+        }
+        else
+        {
+            usersAssocRef = dropboxAssoc.get(0);
+        }
+
+        List<ChildAssociationRef> usersAssoc = nodeService.getChildAssocs(usersAssocRef.getChildRef(), DropboxConstants.Model.ASSOC_USER_METADATA, QName.createQName(DropboxConstants.Model.ORG_DROPBOX_MODEL_1_0_URI, AuthenticationUtil.getRunAsUser()));
+
+        ChildAssociationRef userAssocRef;
+        if (usersAssoc.size() == 0)
+        {
+            userAssocRef = nodeService.createNode(usersAssocRef.getChildRef(), DropboxConstants.Model.ASSOC_USER_METADATA, QName.createQName(DropboxConstants.Model.ORG_DROPBOX_MODEL_1_0_URI, AuthenticationUtil.getRunAsUser()), DropboxConstants.Model.TYPE_METADATA);
+        }
+        else
+        {
+            userAssocRef = usersAssoc.get(0);
+        }
+
+        return userAssocRef.getChildRef();
+    }
+
+
+    private NodeRef getUserMetadata(NodeRef nodeRef)
+    {
+        NodeRef userMetadataRef = null;
+
+        List<ChildAssociationRef> dropboxAssoc = nodeService.getChildAssocs(nodeRef, DropboxConstants.Model.ASSOC_DROPBOX, DropboxConstants.Model.ASSOC_DROPBOX);
+
+        if (dropboxAssoc.size() > 0)
+        {
+            List<ChildAssociationRef> usersAssoc = nodeService.getChildAssocs(dropboxAssoc.get(0).getChildRef(), DropboxConstants.Model.ASSOC_USER_METADATA, QName.createQName(DropboxConstants.Model.ORG_DROPBOX_MODEL_1_0_URI, AuthenticationUtil.getRunAsUser()));
+
+            if (usersAssoc.size() > 0)
+            {
+                userMetadataRef = usersAssoc.get(0).getChildRef();
+            }
+        }
+
+        return userMetadataRef;
+    }
+
+
     public Map<QName, Serializable> getPersistedMetadata(NodeRef nodeRef)
     {
         Map<QName, Serializable> properties = null;
@@ -768,20 +1534,55 @@ public class DropboxServiceImpl
     }
 
 
-    private byte[] getBytes(ContentReader reader)
-        throws IOException
+    public NodeRef getNodeRef(String path)
     {
-        InputStream originalInputStream = reader.getContentInputStream();
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        final int BUF_SIZE = 1 << 8; // 1KiB buffer
-        byte[] buffer = new byte[BUF_SIZE];
-        int bytesRead = -1;
-        while ((bytesRead = originalInputStream.read(buffer)) > -1)
+        NodeRef nodeRef = null;
+
+        // <share host>/Sites/<site>/<path in the document library>, the reverse of getDropboxPath
+        String[] names = path.replaceAll("^/+|/+$", "").split("/");
+
+        if (names.length > 2 && names[0].equalsIgnoreCase(sysAdminParams.getShareHost())
+            && names[1].equalsIgnoreCase(SITES.substring(1)))
         {
-            outputStream.write(buffer, 0, bytesRead);
+            if (siteService.getSite(names[2]) != null)
+            {
+                nodeRef = siteService.getContainer(names[2], SiteService.DOCUMENT_LIBRARY);
+
+                for (int i = 3; i < names.length && nodeRef != null; i++)
+                {
+                    nodeRef = nodeService.getChildByName(nodeRef, ContentModel.ASSOC_CONTAINS, names[i]);
+                }
+            }
         }
-        originalInputStream.close();
-        return outputStream.toByteArray();
+
+        return nodeRef;
+    }
+
+
+    /**
+     * Metadata of a file from the JSON Dropbox answers an upload or copy with, or sends with a download, which is the same as
+     * the metadata call returns
+     */
+    private Metadata toMetadata(JSONObject json)
+    {
+        Date modified = null;
+
+        if (json.get("modified") != null)
+        {
+            try
+            {
+                modified = new SimpleDateFormat(MODIFIED, Locale.US).parse(json.get("modified").toString());
+            }
+            catch (ParseException pe)
+            {
+                logger.debug("Unable to parse the modified date " + json.get("modified") + ": " + pe.getMessage());
+            }
+        }
+
+        return new Metadata((String)json.get("size"), json.get("bytes") != null ? ((Number)json.get("bytes")).longValue() : 0L,
+                Boolean.TRUE.equals(json.get("is_dir")), Boolean.TRUE.equals(json.get("is_deleted")), (String)json.get("rev"),
+                (String)json.get("hash"), Boolean.TRUE.equals(json.get("thumb_exists")), (String)json.get("icon"), modified,
+                (String)json.get("root"), (String)json.get("path"), (String)json.get("mime_type"), null);
     }
 
 
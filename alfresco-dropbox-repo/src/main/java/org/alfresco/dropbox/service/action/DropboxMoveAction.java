@@ -21,15 +21,19 @@ import java.util.Map;
 
 import org.alfresco.dropbox.DropboxConstants;
 import org.alfresco.dropbox.service.DropboxService;
+import org.alfresco.dropbox.service.fanout.FanOutExecutor;
+import org.alfresco.dropbox.service.fanout.FanOutResults;
 import org.alfresco.repo.action.ParameterDefinitionImpl;
 import org.alfresco.repo.action.executer.ActionExecuterAbstractBase;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
 import org.alfresco.service.cmr.action.Action;
 import org.alfresco.service.cmr.action.ParameterDefinition;
 import org.alfresco.service.cmr.dictionary.DataTypeDefinition;
 import org.alfresco.service.cmr.repository.ChildAssociationRef;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.transaction.TransactionService;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.social.dropbox.api.Metadata;
@@ -47,9 +51,13 @@ public class DropboxMoveAction
 
     private DropboxService     dropboxService;
     private NodeService        nodeService;
+    private TransactionService transactionService;
+    private FanOutExecutor     fanOutExecutor;
 
     public static final String DROPBOX_FROM_PATH = "dropbox-from-path";
     public static final String DROPBOX_TO_PATH   = "dropbox-to-path";
+    // Only these users, when the node was already moved for the others
+    public static final String DROPBOX_USERS     = "dropbox-users";
 
 
     public void setDropboxService(DropboxService dropboxService)
@@ -64,35 +72,81 @@ public class DropboxMoveAction
     }
 
 
+    public void setTransactionService(TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+
+    public void setFanOutExecutor(FanOutExecutor fanOutExecutor)
+    {
+        this.fanOutExecutor = fanOutExecutor;
+    }
+
+
+    @SuppressWarnings("unchecked")
     @Override
     protected void executeImpl(final Action action, final NodeRef actionedUponNodeRef)
     {
 
         Map<String, NodeRef> syncedUsers = dropboxService.getSyncedUsers(((ChildAssociationRef)action.getParameterValue(DROPBOX_TO_PATH)).getChildRef());
 
-        for (final Map.Entry<String, NodeRef> syncedUser : syncedUsers.entrySet())
+        if (action.getParameterValue(DROPBOX_USERS) != null)
+        {
+            syncedUsers.keySet().retainAll((List<String>)action.getParameterValue(DROPBOX_USERS));
+        }
+
+        // Move for every user at the same time, then persist the new metadata for all of them at the end
+        final FanOutResults<Metadata> results = fanOutExecutor.execute(syncedUsers.keySet(), new AuthenticationUtil.RunAsWork<Metadata>()
         {
-            AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Metadata>()
+            public Metadata doWork()
+                throws Exception
             {
-                public Metadata doWork()
-                    throws Exception
-                {
-                    Metadata metadata = dropboxService.move((ChildAssociationRef)action.getParameterValue(DROPBOX_FROM_PATH), (ChildAssociationRef)action.getParameterValue(DROPBOX_TO_PATH));
-                    dropboxService.persistMetadata(metadata, ((ChildAssociationRef)action.getParameterValue(DROPBOX_TO_PATH)).getChildRef());
+                Metadata metadata = dropboxService.move((ChildAssociationRef)action.getParameterValue(DROPBOX_FROM_PATH), (ChildAssociationRef)action.getParameterValue(DROPBOX_TO_PATH));
 
-                    logger.debug("Dropbox: Moved from "
-                                 + ((ChildAssociationRef)action.getParameterValue(DROPBOX_FROM_PATH)).toString() + " to "
-                                 + ((ChildAssociationRef)action.getParameterValue(DROPBOX_TO_PATH)).toString());
+                logger.debug("Dropbox: Moved from "
+                             + ((ChildAssociationRef)action.getParameterValue(DROPBOX_FROM_PATH)).toString() + " to "
+                             + ((ChildAssociationRef)action.getParameterValue(DROPBOX_TO_PATH)).toString());
 
-                    if (nodeService.hasAspect(((ChildAssociationRef)action.getParameterValue(DROPBOX_TO_PATH)).getChildRef(), DropboxConstants.Model.ASPECT_SYNC_IN_PROGRESS))
+                return metadata;
+            }
+        });
+
+        final NodeRef toNodeRef = ((ChildAssociationRef)action.getParameterValue(DROPBOX_TO_PATH)).getChildRef();
+
+        RetryingTransactionCallback<Object> txnWork = new RetryingTransactionCallback<Object>()
+        {
+            public Object execute()
+                throws Throwable
+            {
+                for (final Map.Entry<String, Metadata> result : results.getResults().entrySet())
+                {
+                    AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Object>()
                     {
-                        nodeService.removeAspect(((ChildAssociationRef)action.getParameterValue(DROPBOX_TO_PATH)).getChildRef(), DropboxConstants.Model.ASPECT_SYNC_IN_PROGRESS);
-                    }
+                        public Object doWork()
+                            throws Exception
+                        {
+                            dropboxService.persistMetadata(result.getValue(), toNodeRef);
+
+                            return null;
+                        }
+                    }, result.getKey());
+                }
 
-                    return metadata;
+                if (results.isComplete() && nodeService.hasAspect(toNodeRef, DropboxConstants.Model.ASPECT_SYNC_IN_PROGRESS))
+                {
+                    nodeService.removeAspect(toNodeRef, DropboxConstants.Model.ASPECT_SYNC_IN_PROGRESS);
                 }
-            }, syncedUser.getKey());
-        }
+
+                return null;
+            }
+        };
+
+        // In a transaction of its own, so what was moved is kept even if the move failed for other users
+        transactionService.getRetryingTransactionHelper().doInTransaction(txnWork, false, true);
+
+        // Keep the move queued for the users it failed for. The queue only moves it for them again.
+        results.rethrow();
     }
 
 
@@ -101,6 +155,7 @@ public class DropboxMoveAction
     {
         paramList.add(new ParameterDefinitionImpl(DROPBOX_FROM_PATH, DataTypeDefinition.CHILD_ASSOC_REF, true, getParamDisplayLabel(DROPBOX_FROM_PATH)));
         paramList.add(new ParameterDefinitionImpl(DROPBOX_TO_PATH, DataTypeDefinition.CHILD_ASSOC_REF, true, getParamDisplayLabel(DROPBOX_TO_PATH)));
+        paramList.add(new ParameterDefinitionImpl(DROPBOX_USERS, DataTypeDefinition.TEXT, false, getParamDisplayLabel(DROPBOX_USERS)));
 
     }
 
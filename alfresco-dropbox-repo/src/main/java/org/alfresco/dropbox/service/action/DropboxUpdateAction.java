@@ -16,19 +16,26 @@
 package org.alfresco.dropbox.service.action;
 
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.alfresco.dropbox.DropboxConstants;
+import org.alfresco.dropbox.exceptions.DropboxClientException;
 import org.alfresco.dropbox.exceptions.FileExistsException;
 import org.alfresco.dropbox.service.DropboxService;
+import org.alfresco.dropbox.service.fanout.FanOutExecutor;
+import org.alfresco.dropbox.service.fanout.FanOutResults;
 import org.alfresco.model.ContentModel;
 import org.alfresco.repo.action.ParameterDefinitionImpl;
 import org.alfresco.repo.action.executer.ActionExecuterAbstractBase;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
 import org.alfresco.service.cmr.action.Action;
 import org.alfresco.service.cmr.action.ActionServiceException;
 import org.alfresco.service.cmr.action.ParameterDefinition;
@@ -40,11 +47,13 @@ import org.alfresco.service.cmr.model.FileInfo;
 import org.alfresco.service.cmr.repository.ChildAssociationRef;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.transaction.TransactionService;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.extensions.webscripts.Status;
 import org.springframework.social.dropbox.api.Metadata;
 import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestClientException;
 
 
 /**
@@ -61,8 +70,12 @@ public class DropboxUpdateAction
     private LockService        lockService;
     private NodeService        nodeService;
     private FileFolderService  fileFolderService;
+    private TransactionService transactionService;
+    private FanOutExecutor     fanOutExecutor;
 
     public static final String DROPBOX_USE_PARENT = "dropbox-use-parent";
+    // Only these users, when the node was already sent to the others
+    public static final String DROPBOX_USERS      = "dropbox-users";
 
 
     public void setDropboxService(DropboxService dropboxService)
@@ -89,6 +102,19 @@ public class DropboxUpdateAction
     }
 
 
+    public void setTransactionService(TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+
+    public void setFanOutExecutor(FanOutExecutor fanOutExecutor)
+    {
+        this.fanOutExecutor = fanOutExecutor;
+    }
+
+
+    @SuppressWarnings("unchecked")
     @Override
     protected void executeImpl(Action action, final NodeRef actionedUponNodeRef)
     {
@@ -110,57 +136,142 @@ public class DropboxUpdateAction
                 syncedUsers = dropboxService.getSyncedUsers(actionedUponNodeRef);
             }
 
-            for (final Map.Entry<String, NodeRef> syncedUser : syncedUsers.entrySet())
+            if (action.getParameterValue(DROPBOX_USERS) != null)
             {
-                AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Object>()
+                syncedUsers.keySet().retainAll((List<String>)action.getParameterValue(DROPBOX_USERS));
+            }
+
+            // Content is only sent by the first user. The other users who do not have it yet get a server side copy of it.
+            final List<String> users = new ArrayList<String>(syncedUsers.keySet());
+            final Map<NodeRef, String> copyRefs = users.size() > 1 ? new ConcurrentHashMap<NodeRef, String>() : null;
+
+            // Each user is sent the node at the same time. What is to be persisted for each is collected and persisted at the
+            // end.
+            AuthenticationUtil.RunAsWork<Map<NodeRef, Metadata>> work = new AuthenticationUtil.RunAsWork<Map<NodeRef, Metadata>>()
+            {
+                public Map<NodeRef, Metadata> doWork()
+                    throws Exception
                 {
-                    public Object doWork()
-                        throws Exception
+                    Map<NodeRef, Metadata> results = new LinkedHashMap<NodeRef, Metadata>();
+
+                    boolean updateParent = false;
+                    try
                     {
-                        boolean updateParent = false;
-                        try
+                        if (nodeService.getType(actionedUponNodeRef).equals(ContentModel.TYPE_CONTENT))
                         {
-                            if (nodeService.getType(actionedUponNodeRef).equals(ContentModel.TYPE_CONTENT))
-                            {
-                                add(actionedUponNodeRef);
-
-                                logger.debug("Dropbox: Add performed by " + syncedUser.getKey());
+                            add(actionedUponNodeRef, users, copyRefs, results);
 
-                                updateParent = true;
-                            }
-                            else if (nodeService.getType(actionedUponNodeRef).equals(ContentModel.TYPE_FOLDER))
-                            {
-                                addChildren(actionedUponNodeRef);
+                            logger.debug("Dropbox: Add performed by " + AuthenticationUtil.getRunAsUser());
 
-                                logger.debug("Dropbox: Add Children performed by " + syncedUser.getKey());
-
-                                updateParent = true;
-                            }
+                            updateParent = true;
                         }
-                        catch (FileExistsException fee)
+                        else if (nodeService.getType(actionedUponNodeRef).equals(ContentModel.TYPE_FOLDER))
                         {
-                            logger.warn("Dropbox: " + fee.getMessage() + " Status OK.");
+                            addChildren(actionedUponNodeRef, users, copyRefs, results);
 
-                            Metadata metadata = dropboxService.getMetadata(fee.getNodeRef());
+                            logger.debug("Dropbox: Add Children performed by " + AuthenticationUtil.getRunAsUser());
 
-                            dropboxService.persistMetadata(metadata, fee.getNodeRef());
                             updateParent = true;
                         }
-                        finally
+                    }
+                    catch (FileExistsException fee)
+                    {
+                        logger.warn("Dropbox: " + fee.getMessage() + " Status OK.");
+
+                        results.put(fee.getNodeRef(), dropboxService.getMetadata(fee.getNodeRef()));
+                        updateParent = true;
+                    }
+                    finally
+                    {
+                        if (updateParent)
                         {
-                            if (updateParent)
-                            {
-                                updateParent(actionedUponNodeRef);
+                            updateParent(actionedUponNodeRef, results);
 
-                                logger.debug("Dropbox: Update Parent performed by " + syncedUser.getKey());
+                            logger.debug("Dropbox: Update Parent performed by " + AuthenticationUtil.getRunAsUser());
+                        }
+                    }
+
+                    return results;
+                }
+            };
+
+            FanOutResults<Map<NodeRef, Metadata>> results;
+
+            if (copyRefs != null)
+            {
+                // The first user has to have sent the content before the others can copy it
+                results = fanOutExecutor.execute(users.subList(0, 1), work);
+                results.addAll(fanOutExecutor.execute(users.subList(1, users.size()), work));
+            }
+            else
+            {
+                results = fanOutExecutor.execute(users, work);
+            }
+
+            persist(results.getResults(), actionedUponNodeRef, results.isComplete());
+
+            // Keep the work queued for the users it failed for. The queue only sends it to them again.
+            results.rethrow();
+        }
+    }
+
+
+    /**
+     * Persist the metadata collected for each user in a transaction of its own, so it is kept even if the work failed for
+     * other users. The nodes are only marked as no longer syncing if the work succeeded for every user.
+     */
+    private void persist(final Map<String, Map<NodeRef, Metadata>> results, final NodeRef actionedUponNodeRef, final boolean complete)
+    {
+        RetryingTransactionCallback<Object> txnWork = new RetryingTransactionCallback<Object>()
+        {
+            public Object execute()
+                throws Throwable
+            {
+                for (final Map.Entry<String, Map<NodeRef, Metadata>> userResults : results.entrySet())
+                {
+                    AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Object>()
+                    {
+                        public Object doWork()
+                            throws Exception
+                        {
+                            for (Map.Entry<NodeRef, Metadata> result : userResults.getValue().entrySet())
+                            {
+                                if (result.getValue() != null)
+                                {
+                                    dropboxService.persistMetadata(result.getValue(), result.getKey());
+                                }
                             }
+
+                            return null;
                         }
+                    }, userResults.getKey());
+                }
 
-                        return null;
+                if (complete)
+                {
+                    for (Map<NodeRef, Metadata> userResults : results.values())
+                    {
+                        for (NodeRef nodeRef : userResults.keySet())
+                        {
+                            removeSyncInProgress(nodeRef);
+                        }
                     }
-                }, syncedUser.getKey());
+                    removeSyncInProgress(actionedUponNodeRef);
+                }
 
+                return null;
             }
+        };
+
+        transactionService.getRetryingTransactionHelper().doInTransaction(txnWork, false, true);
+    }
+
+
+    private void removeSyncInProgress(NodeRef nodeRef)
+    {
+        if (nodeService.exists(nodeRef) && nodeService.hasAspect(nodeRef, DropboxConstants.Model.ASPECT_SYNC_IN_PROGRESS))
+        {
+            nodeService.removeAspect(nodeRef, DropboxConstants.Model.ASPECT_SYNC_IN_PROGRESS);
         }
     }
 
@@ -169,20 +280,44 @@ public class DropboxUpdateAction
     protected void addParameterDefinitions(List<ParameterDefinition> paramList)
     {
         paramList.add(new ParameterDefinitionImpl(DROPBOX_USE_PARENT, DataTypeDefinition.BOOLEAN, false, getParamDisplayLabel(DROPBOX_USE_PARENT)));
+        paramList.add(new ParameterDefinitionImpl(DROPBOX_USERS, DataTypeDefinition.TEXT, false, getParamDisplayLabel(DROPBOX_USERS)));
     }
 
 
-    private void add(NodeRef nodeRef)
+    /**
+     * @param nodeRef
+     * @param users every user the node is sent to
+     * @param copyRefs copy references to content already sent by another user, or null if there are no other users
+     * @param results metadata to persist for the current user
+     */
+    private void add(NodeRef nodeRef, List<String> users, Map<NodeRef, String> copyRefs, Map<NodeRef, Metadata> results)
     {
         Metadata metadata = null;
 
         if (nodeService.getType(nodeRef).equals(ContentModel.TYPE_CONTENT))
         {
-            // TODO if this is marked for overwrite...and the file does not
-            // exist...will it bomb?
-            metadata = dropboxService.putFile(nodeRef, true);
+            // A copy never replaces a file, so it is only of use to users who do not have the node synced yet
+            Set<String> usersWithFile = dropboxService.getSyncedUsers(nodeRef).keySet();
+
+            if (copyRefs != null && copyRefs.containsKey(nodeRef) && !usersWithFile.contains(AuthenticationUtil.getRunAsUser()))
+            {
+                metadata = dropboxService.copyFromRef(nodeRef, copyRefs.get(nodeRef));
+
+                logger.debug("Dropbox: Add: copyFromRef: " + nodeRef.toString());
+            }
+            else
+            {
+                // TODO if this is marked for overwrite...and the file does not
+                // exist...will it bomb?
+                metadata = dropboxService.putFile(nodeRef, true);
 
-            logger.debug("Dropbox: Add: putFile: " + nodeRef.toString());
+                logger.debug("Dropbox: Add: putFile: " + nodeRef.toString());
+
+                if (copyRefs != null && !copyRefs.containsKey(nodeRef) && hasUsersWithoutFile(users, usersWithFile))
+                {
+                    shareCopyRef(nodeRef, copyRefs);
+                }
+            }
         }
         else if (nodeService.getType(nodeRef).equals(ContentModel.TYPE_FOLDER))
         {
@@ -211,17 +346,12 @@ public class DropboxUpdateAction
 
         if (metadata != null)
         {
-            dropboxService.persistMetadata(metadata, nodeRef);
-        }
-
-        if (nodeService.hasAspect(nodeRef, DropboxConstants.Model.ASPECT_SYNC_IN_PROGRESS))
-        {
-            nodeService.removeAspect(nodeRef, DropboxConstants.Model.ASPECT_SYNC_IN_PROGRESS);
+            results.put(nodeRef, metadata);
         }
     }
 
 
-    private void addChildren(NodeRef nodeRef)
+    private void addChildren(NodeRef nodeRef, List<String> users, Map<NodeRef, String> copyRefs, Map<NodeRef, Metadata> results)
     {
         // Get all of the Children on this Folder
         List<FileInfo> children = fileFolderService.list(nodeRef);
@@ -238,48 +368,74 @@ public class DropboxUpdateAction
                     {
                         if (nodeService.getType(fileInfo.getNodeRef()).equals(ContentModel.TYPE_CONTENT))
                         {
-                            add(fileInfo.getNodeRef());
+                            add(fileInfo.getNodeRef(), users, copyRefs, results);
                         }
                         else if (nodeService.getType(fileInfo.getNodeRef()).equals(ContentModel.TYPE_FOLDER))
                         {
-                            addChildren(fileInfo.getNodeRef());
+                            addChildren(fileInfo.getNodeRef(), users, copyRefs, results);
 
-                            Metadata metadata = dropboxService.getMetadata(fileInfo.getNodeRef());
-                            dropboxService.persistMetadata(metadata, fileInfo.getNodeRef());
+                            results.put(fileInfo.getNodeRef(), dropboxService.getMetadata(fileInfo.getNodeRef()));
                         }
                     }
                     catch (FileExistsException fee)
                     {
                         logger.warn(fee.getMessage());
 
-                        Metadata metadata = dropboxService.getMetadata(fee.getNodeRef());
-
-                        dropboxService.persistMetadata(metadata, fee.getNodeRef());
-                    }
-
-                    if (nodeService.hasAspect(nodeRef, DropboxConstants.Model.ASPECT_SYNC_IN_PROGRESS))
-                    {
-                        nodeService.removeAspect(nodeRef, DropboxConstants.Model.ASPECT_SYNC_IN_PROGRESS);
+                        results.put(fee.getNodeRef(), dropboxService.getMetadata(fee.getNodeRef()));
                     }
                 }
             }
         }
         else
         {
-            add(nodeRef);
+            add(nodeRef, users, copyRefs, results);
+        }
+    }
+
+
+    private boolean hasUsersWithoutFile(List<String> users, Set<String> usersWithFile)
+    {
+        for (String user : users)
+        {
+            if (!user.equals(AuthenticationUtil.getRunAsUser()) && !usersWithFile.contains(user))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Make the content just sent by the current user available for the other users to copy. If no reference can be created
+     * the next user sends the content instead.
+     */
+    private void shareCopyRef(NodeRef nodeRef, Map<NodeRef, String> copyRefs)
+    {
+        try
+        {
+            copyRefs.put(nodeRef, dropboxService.createCopyRef(nodeRef));
+        }
+        catch (DropboxClientException dce)
+        {
+            logger.debug("Dropbox: Unable to create Copy Ref for " + nodeRef + ": " + dce.getMessage());
+        }
+        catch (RestClientException rce)
+        {
+            logger.debug("Dropbox: Unable to create Copy Ref for " + nodeRef + ": " + rce.getMessage());
         }
     }
 
 
-    private void updateParent(NodeRef nodeRef)
+    private void updateParent(NodeRef nodeRef, Map<NodeRef, Metadata> results)
     {
         ChildAssociationRef childAssociationRef = nodeService.getPrimaryParent(nodeRef);
         NodeRef parent = childAssociationRef.getParentRef();
 
         if (nodeService.hasAspect(parent, DropboxConstants.Model.ASPECT_DROPBOX))
         {
-            Metadata metadata = dropboxService.getMetadata(parent);
-            dropboxService.persistMetadata(metadata, parent);
+            results.put(parent, dropboxService.getMetadata(parent));
         }
     }
 
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2011-2012 Alfresco Software Limited.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.dropbox.service.connection;
+
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.dropbox.exceptions.DropboxClientException;
+import org.alfresco.dropbox.exceptions.DropboxUnavailableException;
+import org.alfresco.dropbox.exceptions.RateLimitException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.ResourceAccessException;
+
+
+/**
+ * Runs calls to Dropbox with retries and a circuit breaker.
+ * <p>
+ * A failure is classified by its HTTP status code. Connection failures and 500, 502 and 504 responses are transient: an
+ * idempotent call is retried up to <code>maxRetries</code> times, after a random delay of up to
+ * <code>baseDelay * 2^attempt</code> milliseconds, capped at <code>maxDelay</code>. Any other 4xx is the callers problem and
+ * is thrown at once.
+ * <p>
+ * After <code>failureThreshold</code> transient failures in a row the circuit opens, and for <code>openDuration</code>
+ * milliseconds calls fail at once with a {@link DropboxUnavailableException}. Then a single call is let through: if it
+ * succeeds the circuit closes, otherwise it opens again.
+ */
+public class DropboxCallExecutor
+{
+    private static final Log   logger           = LogFactory.getLog(DropboxCallExecutor.class);
+
+    private static final int   CLOSED           = 0;
+    private static final int   OPEN             = 1;
+    private static final int   HALF_OPEN        = 2;
+
+    private int                maxRetries       = 3;
+    private long               baseDelay        = 500L;
+    private long               maxDelay         = 10000L;
+    private int                failureThreshold = 10;
+    private long               openDuration     = 30000L;
+
+    private final Random       random           = new Random();
+
+    private int                state            = CLOSED;
+    private int                consecutiveFailures;
+    private long               openedAt;
+
+    private final AtomicLong   calls            = new AtomicLong();
+    private final AtomicLong   retries          = new AtomicLong();
+    private final AtomicLong   failures         = new AtomicLong();
+    private final AtomicLong   shortCircuited   = new AtomicLong();
+    private final AtomicLong   opened           = new AtomicLong();
+
+
+    /**
+     * A call to Dropbox
+     */
+    public interface DropboxCall<T>
+    {
+        T execute()
+            throws IOException;
+    }
+
+
+    public void setMaxRetries(int maxRetries)
+    {
+        this.maxRetries = maxRetries;
+    }
+
+
+    public void setBaseDelay(long baseDelay)
+    {
+        this.baseDelay = baseDelay;
+    }
+
+
+    public void setMaxDelay(long maxDelay)
+    {
+        this.maxDelay = maxDelay;
+    }
+
+
+    /**
+     * Transient failures in a row that open the circuit
+     *
+     * @param failureThreshold
+     */
+    public void setFailureThreshold(int failureThreshold)
+    {
+        this.failureThreshold = failureThreshold;
+    }
+
+
+    /**
+     * Milliseconds the circuit stays open before Dropbox is tried again
+     *
+     * @param openDuration
+     */
+    public void setOpenDuration(long openDuration)
+    {
+        this.openDuration = openDuration;
+    }
+
+
+    /**
+     * Run the call, retrying transient failures if it is idempotent. An IOException that is not retried is thrown as a
+     * {@link DropboxClientException}.
+     *
+     * @param operation name of the call, for logging
+     * @param idempotent whether the call may safely be made again
+     * @param call
+     * @return the result of the call
+     * @throws DropboxUnavailableException if the circuit is open
+     */
+    public <T> T execute(String operation, boolean idempotent, DropboxCall<T> call)
+    {
+        calls.incrementAndGet();
+
+        int attempt = 0;
+
+        while (true)
+        {
+            allowCall();
+
+            try
+            {
+                T result = call.execute();
+
+                recordSuccess();
+
+                return result;
+            }
+            catch (IOException ioe)
+            {
+                recordFailure(-1);
+
+                if (!retry(operation, idempotent, ++attempt, ioe))
+                {
+                    throw new DropboxClientException(ioe.getMessage(), ioe);
+                }
+            }
+            catch (RuntimeException re)
+            {
+                int status = getStatus(re);
+
+                if (!isTransient(re, status))
+                {
+                    // Dropbox answered, so it is up
+                    recordSuccess();
+                    throw re;
+                }
+
+                recordFailure(status);
+
+                if (!retry(operation, idempotent, ++attempt, re))
+                {
+                    throw re;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * The HTTP status of a failed call
+     *
+     * @param e
+     * @return the status code, or -1 if there was no response
+     */
+    public static int getStatus(Throwable e)
+    {
+        int status = -1;
+
+        if (e instanceof HttpStatusCodeException)
+        {
+            status = ((HttpStatusCodeException)e).getStatusCode().value();
+        }
+
+        return status;
+    }
+
+
+    private boolean isTransient(RuntimeException re, int status)
+    {
+        if (re instanceof RateLimitException || re instanceof DropboxUnavailableException)
+        {
+            return false;
+        }
+
+        return re instanceof ResourceAccessException || status == 500 || status == 502 || status == 504;
+    }
+
+
+    private boolean retry(String operation, boolean idempotent, int attempt, Exception e)
+    {
+        if (!idempotent || attempt > maxRetries || isOpen())
+        {
+            failures.incrementAndGet();
+            logger.debug("Dropbox: " + operation + " failed: " + e.getMessage());
+
+            return false;
+        }
+
+        long ceiling = Math.min(maxDelay, baseDelay * (1L << Math.min(attempt, 20)));
+        long delay;
+        synchronized (random)
+        {
+            delay = (long)(random.nextDouble() * ceiling);
+        }
+
+        retries.incrementAndGet();
+        logger.debug("Dropbox: " + operation + " failed: " + e.getMessage() + ". Retry " + attempt + " in " + delay + "ms");
+
+        try
+        {
+            Thread.sleep(delay);
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new DropboxClientException("Interrupted while retrying " + operation);
+        }
+
+        return true;
+    }
+
+
+    private synchronized void allowCall()
+    {
+        if (state == OPEN)
+        {
+            long remaining = openedAt + openDuration - System.currentTimeMillis();
+
+            if (remaining > 0)
+            {
+                shortCircuited.incrementAndGet();
+                throw new DropboxUnavailableException(remaining);
+            }
+
+            // Let one call through to see if Dropbox is back
+            state = HALF_OPEN;
+        }
+        else if (state == HALF_OPEN)
+        {
+            shortCircuited.incrementAndGet();
+            throw new DropboxUnavailableException(openDuration);
+        }
+    }
+
+
+    private synchronized void recordSuccess()
+    {
+        if (state != CLOSED)
+        {
+            logger.info("Dropbox is available again. Circuit closed.");
+        }
+
+        state = CLOSED;
+        consecutiveFailures = 0;
+    }
+
+
+    private synchronized void recordFailure(int status)
+    {
+        consecutiveFailures++;
+
+        if (state == HALF_OPEN || (state == CLOSED && consecutiveFailures >= failureThreshold))
+        {
+            state = OPEN;
+            openedAt = System.currentTimeMillis();
+            opened.incrementAndGet();
+
+            logger.warn("Dropbox: " + consecutiveFailures + " failures in a row, the last " + (status > 0 ? status : "a connection failure")
+                        + ". Circuit opened for " + openDuration + "ms");
+        }
+    }
+
+
+    private synchronized boolean isOpen()
+    {
+        return state == OPEN;
+    }
+
+
+    /**
+     * @return CLOSED, OPEN or HALF_OPEN
+     */
+    public synchronized String getState()
+    {
+        return state == OPEN ? "OPEN" : (state == HALF_OPEN ? "HALF_OPEN" : "CLOSED");
+    }
+
+
+    public long getCalls()
+    {
+        return calls.get();
+    }
+
+
+    public long getRetries()
+    {
+        return retries.get();
+    }
+
+
+    /**
+     * Number of calls that failed after any retries
+     *
+     * @return
+     */
+    public long getFailures()
+    {
+        return failures.get();
+    }
+
+
+    /**
+     * Number of calls failed at once because the circuit was open
+     *
+     * @return
+     */
+    public long getShortCircuited()
+    {
+        return shortCircuited.get();
+    }
+
+
+    /**
+     * Number of times the circuit has opened
+     *
+     * @return
+     */
+    public long getOpened()
+    {
+        return opened.get();
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2011-2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.dropbox.service.connection;
+
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.dropbox.api.Dropbox;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+
+/**
+ * Bounded per-user cache of Dropbox connections. Creating a connection costs a credentials lookup and a round trip to Dropbox
+ * for the account info, so connections are kept until they have been idle for <code>idleTimeout</code> milliseconds, are
+ * older than <code>maxAge</code> milliseconds or the users credentials change. The cache is local to each server, so
+ * <code>maxAge</code> bounds how long another server keeps using credentials that have since been changed or removed.
+ */
+public class DropboxConnectionCache
+{
+    private static final Log                    logger      = LogFactory.getLog(DropboxConnectionCache.class);
+
+    private int                                 maxSize     = 500;
+    private long                                idleTimeout = 600000L;
+    private long                                maxAge      = 3600000L;
+
+    private final AtomicLong                    hits        = new AtomicLong();
+    private final AtomicLong                    misses      = new AtomicLong();
+    private final AtomicLong                    evictions   = new AtomicLong();
+
+    private final Map<String, CachedConnection> connections = new LinkedHashMap<String, CachedConnection>(16, 0.75f, true)
+    {
+        private static final long serialVersionUID = -2164380530578720353L;
+
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedConnection> eldest)
+        {
+            boolean remove = size() > maxSize;
+
+            if (remove)
+            {
+                evictions.incrementAndGet();
+            }
+
+            return remove;
+        }
+    };
+
+
+    public void setMaxSize(int maxSize)
+    {
+        this.maxSize = maxSize;
+    }
+
+
+    public void setIdleTimeout(long idleTimeout)
+    {
+        this.idleTimeout = idleTimeout;
+    }
+
+
+    public void setMaxAge(long maxAge)
+    {
+        this.maxAge = maxAge;
+    }
+
+
+    /**
+     * Get the cached connection for the user. Returns null if there is no connection or if it has been idle or kept for too
+     * long.
+     *
+     * @param user
+     * @return
+     */
+    public synchronized Connection<Dropbox> get(String user)
+    {
+        Connection<Dropbox> connection = null;
+
+        CachedConnection cached = connections.get(user);
+        long now = System.currentTimeMillis();
+
+        if (cached != null)
+        {
+            if (isExpired(cached, now))
+            {
+                connections.remove(user);
+                evictions.incrementAndGet();
+            }
+            else
+            {
+                cached.lastAccess = now;
+                connection = cached.connection;
+            }
+        }
+
+        if (connection != null)
+        {
+            hits.incrementAndGet();
+        }
+        else
+        {
+            misses.incrementAndGet();
+        }
+
+        return connection;
+    }
+
+
+    public synchronized void put(String user, Connection<Dropbox> connection)
+    {
+        long now = System.currentTimeMillis();
+
+        // Sweep out expired connections while we have the lock
+        for (Iterator<CachedConnection> i = connections.values().iterator(); i.hasNext();)
+        {
+            if (isExpired(i.next(), now))
+            {
+                i.remove();
+                evictions.incrementAndGet();
+            }
+        }
+
+        connections.put(user, new CachedConnection(connection, now));
+    }
+
+
+    private boolean isExpired(CachedConnection cached, long now)
+    {
+        return now - cached.lastAccess > idleTimeout || now - cached.created > maxAge;
+    }
+
+
+    /**
+     * Remove the users connection once the current transaction commits, or straight away if there is no transaction. Must
+     * be used when the users Dropbox credentials are changed in a transaction. Removing the connection before the new
+     * credentials are committed would let a concurrent request cache a connection made with the old ones again.
+     *
+     * @param user
+     */
+    public void invalidateAfterCommit(final String user)
+    {
+        if (TransactionSynchronizationManager.isSynchronizationActive())
+        {
+            AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter()
+            {
+                @Override
+                public void afterCommit()
+                {
+                    invalidate(user);
+                }
+            });
+        }
+        else
+        {
+            invalidate(user);
+        }
+    }
+
+
+    /**
+     * Remove the users connection.
+     *
+     * @param user
+     */
+    public synchronized void invalidate(String user)
+    {
+        if (connections.remove(user) != null)
+        {
+            logger.debug("Dropbox connection invalidated for " + user);
+        }
+    }
+
+
+    public synchronized void clear()
+    {
+        connections.clear();
+    }
+
+
+    public synchronized int getSize()
+    {
+        return connections.size();
+    }
+
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+
+    private static class CachedConnection
+    {
+        private final Connection<Dropbox> connection;
+        private final long                created;
+        private long                      lastAccess;
+
+
+        private CachedConnection(Connection<Dropbox> connection, long created)
+        {
+            this.connection = connection;
+            this.created = created;
+            this.lastAccess = created;
+        }
+    }
+}
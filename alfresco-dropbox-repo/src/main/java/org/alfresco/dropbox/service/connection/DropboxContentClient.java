@@ -0,0 +1,418 @@
+/*
+ * Copyright 2011-2012 Alfresco Software Limited.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.dropbox.service.connection;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import org.alfresco.dropbox.exceptions.DropboxClientException;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.NameValuePair;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.InputStreamRequestEntity;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.PutMethod;
+import org.apache.commons.httpclient.util.URIUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.springframework.http.HttpStatus;
+import org.springframework.social.oauth1.OAuthToken;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+
+
+/**
+ * Direct calls to the Dropbox REST API for the operations the Spring Social binding can only do with the whole file in
+ * memory, or cannot do at all. Requests go through the pooled {@link DropboxHttpTransport} and are signed with the OAuth PLAINTEXT method, which
+ * Dropbox accepts over HTTPS.
+ */
+public class DropboxContentClient
+{
+    private static final Log               logger      = LogFactory.getLog(DropboxContentClient.class);
+
+    private static final String            API_URL     = "https://api.dropbox.com/1";
+    private static final String            CONTENT_URL = "https://api-content.dropbox.com/1";
+    private static final String            NOTIFY_URL  = "https://api-notify.dropbox.com/1";
+
+    private static final String            UTF_8       = "UTF-8";
+
+    private DropboxHttpTransport           transport;
+    private PooledDropboxConnectionFactory connectionFactory;
+
+
+    public void setTransport(DropboxHttpTransport transport)
+    {
+        this.transport = transport;
+    }
+
+
+    public void setConnectionFactory(PooledDropboxConnectionFactory connectionFactory)
+    {
+        this.connectionFactory = connectionFactory;
+    }
+
+
+    /**
+     * Stream the content to path in the users Dropbox. The content is sent as the request body with a known Content-Length,
+     * so it is never held in memory.
+     *
+     * @param accessToken the users access token
+     * @param path Dropbox path of the file
+     * @param content
+     * @param length number of bytes in content
+     * @param mimetype
+     * @param overwrite if false, Dropbox renames the file when the path is already in use
+     * @return the Dropbox metadata of the uploaded file as JSON
+     * @throws IOException
+     */
+    public JSONObject putFile(OAuthToken accessToken, String path, InputStream content, long length, String mimetype, boolean overwrite)
+        throws IOException
+    {
+        PutMethod method = new PutMethod(CONTENT_URL + "/files_put/" + getRoot() + "/" + encodePath(path));
+        method.setQueryString(new NameValuePair[] { new NameValuePair("overwrite", String.valueOf(overwrite)) });
+        method.setRequestEntity(new InputStreamRequestEntity(content, length, mimetype));
+
+        JSONObject metadata = execute(accessToken, method);
+
+        logger.debug("Streamed " + length + " bytes to " + path);
+
+        return metadata;
+    }
+
+
+    /**
+     * Send one chunk of a chunked upload. If uploadId is null a new upload is started.
+     * <p>
+     * If Dropbox expected a different offset the response is still returned, its offset being the one Dropbox expects next.
+     *
+     * @param accessToken the users access token
+     * @param uploadId the upload to add to, or null
+     * @param offset position of the chunk in the file
+     * @param chunk
+     * @param length number of bytes of chunk to send
+     * @return the upload_id, offset and expires of the upload as JSON
+     * @throws IOException
+     */
+    public JSONObject chunkedUpload(OAuthToken accessToken, String uploadId, long offset, byte[] chunk, int length)
+        throws IOException
+    {
+        PutMethod method = new PutMethod(CONTENT_URL + "/chunked_upload");
+
+        if (uploadId != null)
+        {
+            method.setQueryString(new NameValuePair[] { new NameValuePair("upload_id", uploadId),
+                                                       new NameValuePair("offset", String.valueOf(offset)) });
+        }
+
+        byte[] body = chunk;
+        if (length != chunk.length)
+        {
+            body = new byte[length];
+            System.arraycopy(chunk, 0, body, 0, length);
+        }
+        method.setRequestEntity(new ByteArrayRequestEntity(body, "application/octet-stream"));
+
+        // A 400 carries the offset Dropbox expects
+        return execute(accessToken, method, 400);
+    }
+
+
+    /**
+     * Complete a chunked upload, storing the uploaded data at path in the users Dropbox.
+     *
+     * @param accessToken the users access token
+     * @param path Dropbox path of the file
+     * @param uploadId
+     * @param overwrite if false, Dropbox renames the file when the path is already in use
+     * @return the Dropbox metadata of the file as JSON
+     * @throws IOException
+     */
+    public JSONObject commitChunkedUpload(OAuthToken accessToken, String path, String uploadId, boolean overwrite)
+        throws IOException
+    {
+        PostMethod method = new PostMethod(CONTENT_URL + "/commit_chunked_upload/" + getRoot() + "/" + encodePath(path));
+        method.addParameter("upload_id", uploadId);
+        method.addParameter("overwrite", String.valueOf(overwrite));
+
+        return execute(accessToken, method);
+    }
+
+
+    /**
+     * Start downloading the file at path in the users Dropbox from offset. The returned method has the response body open; the
+     * caller must read it and then release the connection with {@link GetMethod#releaseConnection()}.
+     * <p>
+     * If offset is greater than zero a Range request is made. The status of the returned method is 206 if Dropbox sent the
+     * range and 200 if it sent the whole file.
+     *
+     * @param accessToken the users access token
+     * @param path Dropbox path of the file
+     * @param offset position in the file to start from
+     * @return the executed request
+     * @throws IOException
+     */
+    public GetMethod getFile(OAuthToken accessToken, String path, long offset)
+        throws IOException
+    {
+        GetMethod method = new GetMethod(CONTENT_URL + "/files/" + getRoot() + "/" + encodePath(path));
+        method.setRequestHeader("Authorization", getAuthorizationHeader(accessToken));
+
+        if (offset > 0)
+        {
+            method.setRequestHeader("Range", "bytes=" + offset + "-");
+        }
+
+        boolean opened = false;
+
+        try
+        {
+            int status = transport.executeMethod(method);
+
+            if (status >= 400)
+            {
+                throw createStatusException(status, method.getStatusText());
+            }
+
+            opened = true;
+        }
+        finally
+        {
+            if (!opened)
+            {
+                method.releaseConnection();
+            }
+        }
+
+        return method;
+    }
+
+
+    /**
+     * Create a copy reference to the file at path in the users Dropbox. Any Dropbox user of the same app can copy the file
+     * into their own Dropbox with the reference.
+     *
+     * @param accessToken the users access token
+     * @param path Dropbox path of the file
+     * @return the copy reference
+     * @throws IOException
+     */
+    public String createCopyRef(OAuthToken accessToken, String path)
+        throws IOException
+    {
+        GetMethod method = new GetMethod(API_URL + "/copy_ref/" + getRoot() + "/" + encodePath(path));
+
+        JSONObject response = execute(accessToken, method);
+
+        if (response.get("copy_ref") == null)
+        {
+            throw new DropboxClientException("Unexpected copy_ref response for " + path + ": " + response);
+        }
+
+        return response.get("copy_ref").toString();
+    }
+
+
+    /**
+     * Copy the file a copy reference points to into path in the users Dropbox. Dropbox copies the file on its side, so none of
+     * its content is sent. Fails with a 403 if there is already a file at path.
+     *
+     * @param accessToken the users access token
+     * @param copyRef a reference from {@link #createCopyRef(OAuthToken, String)}, which may belong to another user
+     * @param path Dropbox path to copy the file to
+     * @return the Dropbox metadata of the copy as JSON
+     * @throws IOException
+     */
+    public JSONObject copyFromRef(OAuthToken accessToken, String copyRef, String path)
+        throws IOException
+    {
+        PostMethod method = new PostMethod(API_URL + "/fileops/copy");
+        method.addParameter("root", getRoot());
+        method.addParameter("from_copy_ref", copyRef);
+        method.addParameter("to_path", path);
+
+        return execute(accessToken, method);
+    }
+
+
+    /**
+     * Get the changes to the users Dropbox since cursor. Only the changes below pathPrefix are returned; a cursor is only
+     * valid with the prefix it was returned for.
+     *
+     * @param accessToken the users access token
+     * @param cursor the cursor returned with the previous page, or null to start from the beginning
+     * @param pathPrefix Dropbox path to return the changes below
+     * @return the entries, cursor, reset and has_more of the page as JSON
+     * @throws IOException
+     */
+    public JSONObject delta(OAuthToken accessToken, String cursor, String pathPrefix)
+        throws IOException
+    {
+        PostMethod method = new PostMethod(API_URL + "/delta");
+        method.addParameter("path_prefix", pathPrefix);
+
+        if (cursor != null)
+        {
+            method.addParameter("cursor", cursor);
+        }
+
+        return execute(accessToken, method);
+    }
+
+
+    /**
+     * Wait for changes to the users Dropbox after cursor. Dropbox answers as soon as there are changes, or after about timeout
+     * seconds if there are none. The request is not signed; the cursor is enough to identify the user.
+     *
+     * @param cursor a cursor from {@link #delta(OAuthToken, String, String)}
+     * @param timeout seconds to wait for changes, from 30 to 480
+     * @return changes, and the seconds to wait before the next call as backoff, as JSON
+     * @throws IOException
+     */
+    public JSONObject longpollDelta(String cursor, int timeout)
+        throws IOException
+    {
+        GetMethod method = new GetMethod(NOTIFY_URL + "/longpoll_delta");
+        method.setQueryString(new NameValuePair[] { new NameValuePair("cursor", cursor),
+                                                   new NameValuePair("timeout", String.valueOf(timeout)) });
+
+        // Dropbox adds up to 90 seconds to the timeout
+        method.getParams().setSoTimeout((timeout + 90) * 1000);
+
+        return execute(null, method);
+    }
+
+
+    /**
+     * The Dropbox metadata of a downloaded file, sent in the x-dropbox-metadata header
+     *
+     * @param method an executed {@link #getFile(OAuthToken, String, long)} request
+     * @return the metadata as JSON, or null if there was none
+     */
+    public JSONObject getFileMetadata(GetMethod method)
+    {
+        JSONObject metadata = null;
+
+        Header header = method.getResponseHeader("x-dropbox-metadata");
+        if (header != null)
+        {
+            try
+            {
+                metadata = (JSONObject)new JSONParser().parse(header.getValue());
+            }
+            catch (ParseException pe)
+            {
+                logger.debug("Unable to parse file metadata: " + header.getValue());
+            }
+        }
+
+        return metadata;
+    }
+
+
+    private JSONObject execute(OAuthToken accessToken, HttpMethod method)
+        throws IOException
+    {
+        return execute(accessToken, method, -1);
+    }
+
+
+    private JSONObject execute(OAuthToken accessToken, HttpMethod method, int acceptedErrorStatus)
+        throws IOException
+    {
+        if (accessToken != null)
+        {
+            method.setRequestHeader("Authorization", getAuthorizationHeader(accessToken));
+        }
+
+        try
+        {
+            int status = transport.executeMethod(method);
+
+            if (status >= 400 && status != acceptedErrorStatus)
+            {
+                throw createStatusException(status, method.getStatusText());
+            }
+
+            return (JSONObject)new JSONParser().parse(new InputStreamReader(method.getResponseBodyAsStream(), UTF_8));
+        }
+        catch (ParseException pe)
+        {
+            throw new DropboxClientException("Unable to parse Dropbox response: " + pe.getMessage());
+        }
+        finally
+        {
+            method.releaseConnection();
+        }
+    }
+
+
+    private RuntimeException createStatusException(int status, String statusText)
+    {
+        RuntimeException exception;
+
+        try
+        {
+            if (status >= 500)
+            {
+                exception = new HttpServerErrorException(HttpStatus.valueOf(status), statusText);
+            }
+            else
+            {
+                exception = new HttpClientErrorException(HttpStatus.valueOf(status), statusText);
+            }
+        }
+        catch (IllegalArgumentException iae)
+        {
+            // A status Spring does not know about
+            exception = new DropboxClientException(status + " " + statusText);
+        }
+
+        return exception;
+    }
+
+
+    private String getAuthorizationHeader(OAuthToken accessToken)
+    {
+        return "OAuth oauth_version=\"1.0\", oauth_signature_method=\"PLAINTEXT\", oauth_consumer_key=\""
+               + connectionFactory.getConsumerKey() + "\", oauth_token=\"" + accessToken.getValue() + "\", oauth_signature=\""
+               + connectionFactory.getConsumerSecret() + "&" + accessToken.getSecret() + "\"";
+    }
+
+
+    private String getRoot()
+    {
+        return connectionFactory.isAppFolder() ? "sandbox" : "dropbox";
+    }
+
+
+    private String encodePath(String path)
+        throws IOException
+    {
+        if (path.startsWith("/"))
+        {
+            path = path.substring(1);
+        }
+
+        return URIUtil.encodePath(path, UTF_8);
+    }
+}
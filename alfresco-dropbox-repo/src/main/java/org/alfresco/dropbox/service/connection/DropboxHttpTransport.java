@@ -0,0 +1,360 @@
+/*
+ * Copyright 2011-2012 Alfresco Software Limited.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.dropbox.service.connection;
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.alfresco.dropbox.exceptions.NotModifiedException;
+import org.alfresco.dropbox.exceptions.RateLimitException;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.CommonsClientHttpRequestFactory;
+
+
+/**
+ * Pooled, keep-alive HTTP transport for all calls made to Dropbox. Connections are shared between users and are kept open
+ * between requests so that the TCP and TLS handshakes are only paid once per pooled connection. Connections that sit idle
+ * longer than <code>idleConnectionTimeout</code> are closed by a background thread.
+ * <p>
+ * If a {@link DropboxRateLimiter} is set every request waits for it, and a 429 or 503 from Dropbox pauses the requests of the
+ * user or the app and is thrown as a {@link RateLimitException}. A 304 answer to a Spring Social request, which has no body
+ * to read, is thrown as a {@link NotModifiedException}.
+ */
+public class DropboxHttpTransport
+    extends CommonsClientHttpRequestFactory
+{
+    private static final Log                   logger                 = LogFactory.getLog(DropboxHttpTransport.class);
+
+    private static final Pattern               OAUTH_TOKEN            = Pattern.compile("oauth_token=\"([^\"]*)\"");
+
+    private static final int                   NOT_MODIFIED           = 304;
+    private static final int                   TOO_MANY_REQUESTS      = 429;
+    private static final int                   SERVICE_UNAVAILABLE    = 503;
+
+    private int                                maxTotalConnections    = 40;
+    private int                                maxConnectionsPerRoute = 20;
+    private int                                connectTimeout         = 10000;
+    private int                                readTimeout            = 60000;
+    private long                               idleConnectionTimeout  = 30000L;
+    private long                               idleCheckInterval      = 5000L;
+    private boolean                            staleCheckingEnabled   = true;
+
+    private MultiThreadedHttpConnectionManager connectionManager;
+    private IdleConnectionTimeoutThread        idleConnectionTimeoutThread;
+    private DropboxRateLimiter                 rateLimiter;
+
+    private final AtomicLong                   requests               = new AtomicLong();
+
+
+    public void setMaxTotalConnections(int maxTotalConnections)
+    {
+        this.maxTotalConnections = maxTotalConnections;
+    }
+
+
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute)
+    {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+
+    public void setConnectTimeout(int connectTimeout)
+    {
+        this.connectTimeout = connectTimeout;
+    }
+
+
+    @Override
+    public void setReadTimeout(int readTimeout)
+    {
+        this.readTimeout = readTimeout;
+        super.setReadTimeout(readTimeout);
+    }
+
+
+    public void setIdleConnectionTimeout(long idleConnectionTimeout)
+    {
+        this.idleConnectionTimeout = idleConnectionTimeout;
+    }
+
+
+    public void setIdleCheckInterval(long idleCheckInterval)
+    {
+        this.idleCheckInterval = idleCheckInterval;
+    }
+
+
+    public void setStaleCheckingEnabled(boolean staleCheckingEnabled)
+    {
+        this.staleCheckingEnabled = staleCheckingEnabled;
+    }
+
+
+    public void setRateLimiter(DropboxRateLimiter rateLimiter)
+    {
+        this.rateLimiter = rateLimiter;
+    }
+
+
+    public void init()
+    {
+        HttpConnectionManagerParams params = new HttpConnectionManagerParams();
+        params.setMaxTotalConnections(maxTotalConnections);
+        params.setDefaultMaxConnectionsPerHost(maxConnectionsPerRoute);
+        params.setConnectionTimeout(connectTimeout);
+        params.setSoTimeout(readTimeout);
+        params.setStaleCheckingEnabled(staleCheckingEnabled);
+        params.setTcpNoDelay(true);
+
+        connectionManager = new MultiThreadedHttpConnectionManager();
+        connectionManager.setParams(params);
+
+        HttpClient httpClient = new HttpClient(connectionManager);
+        // How long to wait for a free connection from the pool
+        httpClient.getParams().setConnectionManagerTimeout(connectTimeout);
+
+        setHttpClient(httpClient);
+
+        idleConnectionTimeoutThread = new IdleConnectionTimeoutThread();
+        idleConnectionTimeoutThread.setName("DropboxIdleConnectionTimeout");
+        idleConnectionTimeoutThread.setConnectionTimeout(idleConnectionTimeout);
+        idleConnectionTimeoutThread.setTimeoutInterval(idleCheckInterval);
+        idleConnectionTimeoutThread.addConnectionManager(connectionManager);
+        idleConnectionTimeoutThread.start();
+
+        logger.info("Dropbox HTTP transport started. Max connections: " + maxTotalConnections + ", per route: "
+                    + maxConnectionsPerRoute);
+    }
+
+
+    @Override
+    public ClientHttpRequest createRequest(URI uri, HttpMethod httpMethod)
+        throws IOException
+    {
+        requests.incrementAndGet();
+
+        return new DropboxRequest(super.createRequest(uri, httpMethod));
+    }
+
+
+    /**
+     * Execute a request that is not made through the Spring Social RestTemplate. The caller must release the connection once
+     * the response has been read.
+     * 
+     * @param method
+     * @return the HTTP status code
+     * @throws IOException
+     */
+    public int executeMethod(org.apache.commons.httpclient.HttpMethod method)
+        throws IOException
+    {
+        requests.incrementAndGet();
+
+        if (rateLimiter == null)
+        {
+            return getHttpClient().executeMethod(method);
+        }
+
+        Header authorization = method.getRequestHeader("Authorization");
+        String accessToken = getAccessToken(authorization != null ? authorization.getValue() : null);
+
+        rateLimiter.acquire(accessToken);
+
+        int status = getHttpClient().executeMethod(method);
+
+        if (status == TOO_MANY_REQUESTS || status == SERVICE_UNAVAILABLE)
+        {
+            Header retryAfter = method.getResponseHeader("Retry-After");
+            method.releaseConnection();
+
+            throw new RateLimitException(rateLimiter.throttled(accessToken, status, retryAfter != null ? retryAfter.getValue() : null));
+        }
+
+        return status;
+    }
+
+
+    /**
+     * The OAuth token of a request, used to find the rate limit bucket of the user
+     */
+    private String getAccessToken(String authorization)
+    {
+        String accessToken = null;
+
+        if (authorization != null)
+        {
+            Matcher matcher = OAUTH_TOKEN.matcher(authorization);
+            if (matcher.find())
+            {
+                accessToken = matcher.group(1);
+            }
+        }
+
+        return accessToken;
+    }
+
+
+    @Override
+    public void destroy()
+    {
+        if (idleConnectionTimeoutThread != null)
+        {
+            idleConnectionTimeoutThread.shutdown();
+        }
+
+        if (connectionManager != null)
+        {
+            connectionManager.shutdown();
+        }
+    }
+
+
+    /**
+     * Number of connections, in use or idle, currently held by the pool
+     *
+     * @return
+     */
+    public int getConnectionsInPool()
+    {
+        return connectionManager.getConnectionsInPool();
+    }
+
+
+    public int getMaxTotalConnections()
+    {
+        return maxTotalConnections;
+    }
+
+
+    public int getMaxConnectionsPerRoute()
+    {
+        return maxConnectionsPerRoute;
+    }
+
+
+    /**
+     * Total number of requests sent through this transport
+     *
+     * @return
+     */
+    public long getRequestCount()
+    {
+        return requests.get();
+    }
+
+
+    /**
+     * A Spring Social request that waits for the rate limiter and checks the status of the response. The OAuth header is only
+     * set once the request is about to be executed, so the user is looked up then.
+     */
+    private class DropboxRequest
+        implements ClientHttpRequest
+    {
+        private final ClientHttpRequest request;
+
+
+        private DropboxRequest(ClientHttpRequest request)
+        {
+            this.request = request;
+        }
+
+
+        public HttpMethod getMethod()
+        {
+            return request.getMethod();
+        }
+
+
+        public URI getURI()
+        {
+            return request.getURI();
+        }
+
+
+        public HttpHeaders getHeaders()
+        {
+            return request.getHeaders();
+        }
+
+
+        public OutputStream getBody()
+            throws IOException
+        {
+            return request.getBody();
+        }
+
+
+        public ClientHttpResponse execute()
+            throws IOException
+        {
+            String accessToken = getAccessToken(request.getHeaders().getFirst("Authorization"));
+
+            if (rateLimiter != null)
+            {
+                rateLimiter.acquire(accessToken);
+            }
+
+            ClientHttpResponse response = request.execute();
+
+            int status = getStatus(response);
+            if (status == NOT_MODIFIED)
+            {
+                response.close();
+
+                throw new NotModifiedException();
+            }
+            if (rateLimiter != null && (status == TOO_MANY_REQUESTS || status == SERVICE_UNAVAILABLE))
+            {
+                String retryAfter = response.getHeaders().getFirst("Retry-After");
+                response.close();
+
+                throw new RateLimitException(rateLimiter.throttled(accessToken, status, retryAfter));
+            }
+
+            return response;
+        }
+
+
+        private int getStatus(ClientHttpResponse response)
+            throws IOException
+        {
+            try
+            {
+                return response.getStatusCode().value();
+            }
+            catch (IllegalArgumentException iae)
+            {
+                // HttpStatus has no 429
+                return "Too Many Requests".equalsIgnoreCase(response.getStatusText()) ? TOO_MANY_REQUESTS : -1;
+            }
+        }
+    }
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright 2011-2012 Alfresco Software Limited.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.dropbox.service.connection;
+
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.dropbox.exceptions.DropboxClientException;
+import org.alfresco.dropbox.exceptions.RateLimitException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * Token bucket rate limiter for the requests sent to Dropbox. Every request takes a token from the bucket of the app and
+ * from the bucket of the access token it is made with, waiting up to <code>maxWait</code> milliseconds for them.
+ * <p>
+ * When Dropbox answers 429 or 503 the requests of the access token, or of the whole app, are paused for the Retry-After
+ * period. A request that would have to wait longer than <code>maxWait</code> fails with a {@link RateLimitException} that
+ * carries the time to wait, so that queued work can be put off rather than failed.
+ */
+public class DropboxRateLimiter
+{
+    private static final Log                         logger            = LogFactory.getLog(DropboxRateLimiter.class);
+
+    private static final String                      APP               = "";
+
+    private double                                   userRate          = 10;
+    private int                                      userBurst         = 20;
+    private double                                   appRate           = 50;
+    private int                                      appBurst          = 100;
+    private long                                     maxWait           = 10000L;
+    private long                                     defaultRetryAfter = 30000L;
+
+    private TokenBucket                              appBucket;
+    private final ConcurrentMap<String, TokenBucket> userBuckets       = new ConcurrentHashMap<String, TokenBucket>();
+    private final ConcurrentMap<String, Long>        pausedUntil       = new ConcurrentHashMap<String, Long>();
+
+    private final AtomicLong                         permits           = new AtomicLong();
+    private final AtomicLong                         delayed           = new AtomicLong();
+    private final AtomicLong                         delayMillis       = new AtomicLong();
+    private final AtomicLong                         rejected          = new AtomicLong();
+    private final AtomicLong                         throttled         = new AtomicLong();
+
+
+    /**
+     * Requests per second allowed for each access token
+     *
+     * @param userRate
+     */
+    public void setUserRate(double userRate)
+    {
+        this.userRate = userRate;
+    }
+
+
+    public void setUserBurst(int userBurst)
+    {
+        this.userBurst = userBurst;
+    }
+
+
+    /**
+     * Requests per second allowed for the app as a whole
+     *
+     * @param appRate
+     */
+    public void setAppRate(double appRate)
+    {
+        this.appRate = appRate;
+    }
+
+
+    public void setAppBurst(int appBurst)
+    {
+        this.appBurst = appBurst;
+    }
+
+
+    public void setMaxWait(long maxWait)
+    {
+        this.maxWait = maxWait;
+    }
+
+
+    /**
+     * Milliseconds to pause for when a 429 or 503 has no usable Retry-After header
+     *
+     * @param defaultRetryAfter
+     */
+    public void setDefaultRetryAfter(long defaultRetryAfter)
+    {
+        this.defaultRetryAfter = defaultRetryAfter;
+    }
+
+
+    public void init()
+    {
+        appBucket = new TokenBucket(appRate, appBurst);
+    }
+
+
+    /**
+     * Wait until a request may be made with the access token
+     *
+     * @param accessToken the access token of the request, or null if it is not made for a user
+     * @throws RateLimitException if the request would have to wait longer than maxWait
+     */
+    public void acquire(String accessToken)
+    {
+        long pause = Math.max(getPause(APP), accessToken != null ? getPause(accessToken) : 0);
+        if (pause > maxWait)
+        {
+            rejected.incrementAndGet();
+            throw new RateLimitException(pause);
+        }
+
+        TokenBucket userBucket = accessToken != null ? getUserBucket(accessToken) : null;
+
+        long wait = appBucket.reserve();
+        if (userBucket != null)
+        {
+            wait = Math.max(wait, userBucket.reserve());
+        }
+        wait = Math.max(wait, pause);
+
+        if (wait > maxWait)
+        {
+            appBucket.refund();
+            if (userBucket != null)
+            {
+                userBucket.refund();
+            }
+
+            rejected.incrementAndGet();
+            throw new RateLimitException(wait);
+        }
+
+        if (wait > 0)
+        {
+            delayed.incrementAndGet();
+            delayMillis.addAndGet(wait);
+
+            try
+            {
+                Thread.sleep(wait);
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                throw new DropboxClientException("Interrupted while waiting for the Dropbox rate limit");
+            }
+        }
+
+        permits.incrementAndGet();
+    }
+
+
+    /**
+     * Record a 429 or 503 from Dropbox. A 429 pauses the access token, a 503 the whole app.
+     *
+     * @param accessToken the access token of the request, or null
+     * @param status
+     * @param retryAfter the Retry-After header, or null
+     * @return the milliseconds the requests are paused for
+     */
+    public long throttled(String accessToken, int status, String retryAfter)
+    {
+        long pause = parseRetryAfter(retryAfter);
+
+        String key = status == 429 && accessToken != null ? accessToken : APP;
+        long until = System.currentTimeMillis() + pause;
+
+        Long current = pausedUntil.get(key);
+        if (current == null || current < until)
+        {
+            pausedUntil.put(key, until);
+        }
+
+        throttled.incrementAndGet();
+
+        logger.warn("Dropbox returned " + status + ". " + (APP.equals(key) ? "All requests" : "Requests of one user") + " paused for "
+                    + pause + "ms");
+
+        return pause;
+    }
+
+
+    private long parseRetryAfter(String retryAfter)
+    {
+        long pause = defaultRetryAfter;
+
+        if (retryAfter != null)
+        {
+            try
+            {
+                pause = Long.parseLong(retryAfter.trim()) * 1000L;
+            }
+            catch (NumberFormatException nfe)
+            {
+                logger.debug("Unusable Retry-After: " + retryAfter);
+            }
+        }
+
+        return pause;
+    }
+
+
+    private long getPause(String key)
+    {
+        Long until = pausedUntil.get(key);
+        if (until == null)
+        {
+            return 0;
+        }
+
+        long pause = until - System.currentTimeMillis();
+        if (pause <= 0)
+        {
+            pausedUntil.remove(key, until);
+            return 0;
+        }
+
+        return pause;
+    }
+
+
+    private TokenBucket getUserBucket(String accessToken)
+    {
+        TokenBucket bucket = userBuckets.get(accessToken);
+        if (bucket == null)
+        {
+            TokenBucket created = new TokenBucket(userRate, userBurst);
+            bucket = userBuckets.putIfAbsent(accessToken, created);
+            if (bucket == null)
+            {
+                bucket = created;
+            }
+        }
+
+        return bucket;
+    }
+
+
+    /**
+     * Milliseconds until the app may make requests again, or 0 if it is not paused
+     *
+     * @return
+     */
+    public long getAppPause()
+    {
+        return getPause(APP);
+    }
+
+
+    /**
+     * Number of access tokens currently paused by a 429
+     *
+     * @return
+     */
+    public int getPausedUsers()
+    {
+        int paused = 0;
+        for (String key : pausedUntil.keySet())
+        {
+            if (!APP.equals(key) && getPause(key) > 0)
+            {
+                paused++;
+            }
+        }
+
+        return paused;
+    }
+
+
+    public double getAvailableAppTokens()
+    {
+        return appBucket.getAvailable();
+    }
+
+
+    public int getUserBuckets()
+    {
+        return userBuckets.size();
+    }
+
+
+    public long getPermits()
+    {
+        return permits.get();
+    }
+
+
+    /**
+     * Number of requests that had to wait for a token
+     *
+     * @return
+     */
+    public long getDelayed()
+    {
+        return delayed.get();
+    }
+
+
+    public long getDelayMillis()
+    {
+        return delayMillis.get();
+    }
+
+
+    /**
+     * Number of requests failed with a RateLimitException rather than waiting
+     *
+     * @return
+     */
+    public long getRejected()
+    {
+        return rejected.get();
+    }
+
+
+    /**
+     * Number of 429 and 503 responses from Dropbox
+     *
+     * @return
+     */
+    public long getThrottled()
+    {
+        return throttled.get();
+    }
+
+
+    /**
+     * Tokens may go negative; a request that takes one waits until the bucket has refilled past zero.
+     */
+    private static class TokenBucket
+    {
+        private final double rate;
+        private final double capacity;
+        private double       tokens;
+        private long         last;
+
+
+        private TokenBucket(double rate, double capacity)
+        {
+            this.rate = rate / 1000;
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.last = System.currentTimeMillis();
+        }
+
+
+        /**
+         * Take a token
+         *
+         * @return milliseconds to wait before using it
+         */
+        private synchronized long reserve()
+        {
+            refill();
+
+            tokens -= 1;
+
+            return tokens >= 0 ? 0 : (long)Math.ceil(-tokens / rate);
+        }
+
+
+        private synchronized void refund()
+        {
+            tokens = Math.min(capacity, tokens + 1);
+        }
+
+
+        private synchronized double getAvailable()
+        {
+            refill();
+
+            return tokens;
+        }
+
+
+        private void refill()
+        {
+            long now = System.currentTimeMillis();
+            tokens = Math.min(capacity, tokens + (now - last) * rate);
+            last = now;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2011-2012 Alfresco Software Limited.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.dropbox.service.connection;
+
+
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.support.OAuth1Connection;
+import org.springframework.social.dropbox.api.Dropbox;
+import org.springframework.social.dropbox.connect.DropboxConnectionFactory;
+import org.springframework.social.oauth1.AbstractOAuth1ApiBinding;
+import org.springframework.social.oauth1.OAuth1Operations;
+import org.springframework.social.oauth1.OAuth1ServiceProvider;
+import org.springframework.social.oauth1.OAuthToken;
+
+
+/**
+ * Dropbox connection factory whose API bindings send their requests through a shared, pooled
+ * {@link ClientHttpRequestFactory} rather than the per-template default.
+ */
+public class PooledDropboxConnectionFactory
+    extends DropboxConnectionFactory
+{
+    private final String             consumerKey;
+    private final String             consumerSecret;
+    private final boolean            appFolder;
+
+    private ClientHttpRequestFactory requestFactory;
+
+
+    public PooledDropboxConnectionFactory(String consumerKey, String consumerSecret, boolean appFolder)
+    {
+        super(consumerKey, consumerSecret, appFolder);
+
+        this.consumerKey = consumerKey;
+        this.consumerSecret = consumerSecret;
+        this.appFolder = appFolder;
+    }
+
+
+    public void setRequestFactory(ClientHttpRequestFactory requestFactory)
+    {
+        this.requestFactory = requestFactory;
+    }
+
+
+    public String getConsumerKey()
+    {
+        return consumerKey;
+    }
+
+
+    public String getConsumerSecret()
+    {
+        return consumerSecret;
+    }
+
+
+    public boolean isAppFolder()
+    {
+        return appFolder;
+    }
+
+
+    @Override
+    public Connection<Dropbox> createConnection(OAuthToken accessToken)
+    {
+        return new OAuth1Connection<Dropbox>(getProviderId(), extractProviderUserId(accessToken), accessToken.getValue(), accessToken.getSecret(), getPooledServiceProvider(), getApiAdapter());
+    }
+
+
+    @Override
+    public Connection<Dropbox> createConnection(ConnectionData data)
+    {
+        return new OAuth1Connection<Dropbox>(data, getPooledServiceProvider(), getApiAdapter());
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private OAuth1ServiceProvider<Dropbox> getPooledServiceProvider()
+    {
+        return new PooledServiceProvider((OAuth1ServiceProvider<Dropbox>)getServiceProvider());
+    }
+
+
+    /**
+     * Hands out the service providers API bindings with the pooled request factory set on them
+     */
+    private class PooledServiceProvider
+        implements OAuth1ServiceProvider<Dropbox>
+    {
+        private final OAuth1ServiceProvider<Dropbox> serviceProvider;
+
+
+        private PooledServiceProvider(OAuth1ServiceProvider<Dropbox> serviceProvider)
+        {
+            this.serviceProvider = serviceProvider;
+        }
+
+
+        public OAuth1Operations getOAuthOperations()
+        {
+            return serviceProvider.getOAuthOperations();
+        }
+
+
+        public Dropbox getApi(String accessToken, String secret)
+        {
+            Dropbox api = serviceProvider.getApi(accessToken, secret);
+
+            if (requestFactory != null && api instanceof AbstractOAuth1ApiBinding)
+            {
+                ((AbstractOAuth1ApiBinding)api).setRequestFactory(requestFactory);
+            }
+
+            return api;
+        }
+    }
+}
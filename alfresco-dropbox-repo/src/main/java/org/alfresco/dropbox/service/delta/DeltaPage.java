@@ -0,0 +1,153 @@
+/*
+ * Copyright 2011-2012 Alfresco Software Limited.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.dropbox.service.delta;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+
+/**
+ * One page of the changes in a users Dropbox, as returned by the Dropbox delta call. Each entry is a path that changed since
+ * the cursor the page was asked for, with the current state of the item or nothing if it was deleted.
+ * <p>
+ * Entry paths are lower case, as Dropbox sends them. The path of an item that still exists is also available in its
+ * original case.
+ */
+public class DeltaPage
+{
+    private final String      cursor;
+    private final boolean     reset;
+    private final boolean     hasMore;
+    private final List<Entry> entries;
+
+
+    public DeltaPage(JSONObject delta)
+    {
+        this.cursor = (String)delta.get("cursor");
+        this.reset = Boolean.TRUE.equals(delta.get("reset"));
+        this.hasMore = Boolean.TRUE.equals(delta.get("has_more"));
+
+        List<Entry> entries = new ArrayList<Entry>();
+
+        JSONArray list = (JSONArray)delta.get("entries");
+        if (list != null)
+        {
+            for (Object item : list)
+            {
+                JSONArray entry = (JSONArray)item;
+                entries.add(new Entry((String)entry.get(0), (JSONObject)entry.get(1)));
+            }
+        }
+
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+
+    /**
+     * @return the cursor to ask for the changes after this page with
+     */
+    public String getCursor()
+    {
+        return cursor;
+    }
+
+
+    /**
+     * If true, the entries are everything in the users Dropbox rather than what changed. Anything not in them has been
+     * deleted.
+     * 
+     * @return
+     */
+    public boolean isReset()
+    {
+        return reset;
+    }
+
+
+    /**
+     * If true, there are more changes to ask for with this pages cursor
+     * 
+     * @return
+     */
+    public boolean hasMore()
+    {
+        return hasMore;
+    }
+
+
+    public List<Entry> getEntries()
+    {
+        return entries;
+    }
+
+
+    /**
+     * A path that changed, and what is there now
+     */
+    public static class Entry
+    {
+        private final String     path;
+        private final JSONObject metadata;
+
+
+        private Entry(String path, JSONObject metadata)
+        {
+            this.path = path;
+            this.metadata = metadata;
+        }
+
+
+        /**
+         * @return the lower case path of the item
+         */
+        public String getPath()
+        {
+            return path;
+        }
+
+
+        /**
+         * @return the path of the item in its original case, or the lower case path if it was deleted
+         */
+        public String getDisplayPath()
+        {
+            return isDeleted() ? path : (String)metadata.get("path");
+        }
+
+
+        public boolean isDeleted()
+        {
+            return metadata == null || Boolean.TRUE.equals(metadata.get("is_deleted"));
+        }
+
+
+        public boolean isDir()
+        {
+            return !isDeleted() && Boolean.TRUE.equals(metadata.get("is_dir"));
+        }
+
+
+        public String getRev()
+        {
+            return isDeleted() ? null : (String)metadata.get("rev");
+        }
+    }
+}
@@ -0,0 +1,671 @@
+/*
+ * Copyright 2011-2012 Alfresco Software Limited.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.dropbox.service.download;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.dropbox.service.connection.DropboxContentClient;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.alfresco.service.cmr.repository.MimetypeService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.util.TempFileProvider;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.simple.JSONObject;
+import org.springframework.social.oauth1.OAuthToken;
+import org.springframework.web.client.HttpClientErrorException;
+
+
+/**
+ * Downloads files from Dropbox straight into the content store.
+ * <p>
+ * The response body is read into a direct buffer and written from it to the writers channel, which for the file content
+ * store is a <code>FileChannel</code>, so the content is copied once. The mimetype is taken from the response and the encoding
+ * is detected from the first buffer before it is written, so there is no second pass over the content.
+ * <p>
+ * Files larger than <code>spoolThreshold</code> are first spooled to a temp file, and the rev they belong to is saved in a
+ * file next to it. The spool is local to the server, so the rev is kept with it rather than shared with the cluster. If the
+ * download is interrupted the next download of the node by the same user on the same server asks Dropbox for the rest of
+ * the file with a Range request, as long as the rev in Dropbox is still the same. The content is only written to the node
+ * once the whole file has been spooled.
+ * <p>
+ * Spools left behind, for instance by a node that is never downloaded again, are deleted once they are
+ * <code>maxSpoolAge</code> milliseconds old.
+ */
+public class ContentDownloader
+{
+    private static final Log        logger             = LogFactory.getLog(ContentDownloader.class);
+
+    private static final String     SPOOL_DIR          = "dropbox-downloads";
+    private static final String     SPOOL_SUFFIX       = ".part";
+    private static final String     REV_SUFFIX         = ".rev";
+
+    private static final Charset    UTF_8              = Charset.forName("UTF-8");
+
+    private static final int        DETECTION_SIZE     = 8192;
+
+    private DropboxContentClient    contentClient;
+    private MimetypeService         mimetypeService;
+
+    private int                     bufferSize         = 1048576;
+    private long                    spoolThreshold     = 8388608L;
+    private long                    maxSpoolAge        = 86400000L;
+
+    private volatile long           lastCleanUp;
+
+    // Direct buffers are expensive to allocate, so they are reused between downloads
+    private final Queue<ByteBuffer> buffers            = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private final AtomicLong        downloads          = new AtomicLong();
+    private final AtomicLong        downloadsResumed   = new AtomicLong();
+    private final AtomicLong        bytesReceived      = new AtomicLong();
+    private final AtomicLong        bytesResumed       = new AtomicLong();
+    private final AtomicLong        transferMillis     = new AtomicLong();
+
+
+    public void setContentClient(DropboxContentClient contentClient)
+    {
+        this.contentClient = contentClient;
+    }
+
+
+    public void setMimetypeService(MimetypeService mimetypeService)
+    {
+        this.mimetypeService = mimetypeService;
+    }
+
+
+    public void setBufferSize(int bufferSize)
+    {
+        this.bufferSize = bufferSize;
+    }
+
+
+    /**
+     * Files larger than this many bytes are spooled to a temp file so that an interrupted download can be resumed
+     *
+     * @param spoolThreshold
+     */
+    public void setSpoolThreshold(long spoolThreshold)
+    {
+        this.spoolThreshold = spoolThreshold;
+    }
+
+
+    /**
+     * Milliseconds after which a spool that was not resumed is deleted
+     *
+     * @param maxSpoolAge
+     */
+    public void setMaxSpoolAge(long maxSpoolAge)
+    {
+        this.maxSpoolAge = maxSpoolAge;
+    }
+
+
+    /**
+     * Download the file at path in the current users Dropbox into the writer, resuming an earlier interrupted download of the
+     * same rev of the file if there is one. The mimetype and encoding of the writer are set from the downloaded content.
+     *
+     * @param accessToken the current users access token
+     * @param nodeRef the node being downloaded to
+     * @param path Dropbox path of the file
+     * @param writer
+     * @return the Dropbox metadata of the downloaded rev, as sent with the content, or null if there was none
+     * @throws IOException
+     */
+    public JSONObject download(OAuthToken accessToken, NodeRef nodeRef, String path, ContentWriter writer)
+        throws IOException
+    {
+        cleanUp();
+
+        String user = AuthenticationUtil.getRunAsUser();
+        File spool = getSpoolFile(nodeRef, user);
+
+        FileChannel spoolChannel = new FileOutputStream(spool, true).getChannel();
+
+        FileLock lock;
+        try
+        {
+            lock = spoolChannel.tryLock();
+        }
+        catch (OverlappingFileLockException ofle)
+        {
+            // Locked by another thread of this server
+            lock = null;
+        }
+
+        if (lock == null)
+        {
+            // The same user is already downloading this node. Leave the spool to that download.
+            spoolChannel.close();
+
+            logger.debug("Spool of " + path + " is in use. Downloading without it.");
+
+            return download(accessToken, path, writer);
+        }
+
+        long start = System.currentTimeMillis();
+        long total;
+        GetMethod method = null;
+        JSONObject fileMetadata;
+
+        try
+        {
+            long offset = 0;
+
+            String spooledRev = readRev(spool);
+            if (spooledRev != null && spoolChannel.size() > 0)
+            {
+                offset = spoolChannel.size();
+            }
+            else
+            {
+                getRevFile(spool).delete();
+                spoolChannel.truncate(0);
+            }
+
+            try
+            {
+                method = contentClient.getFile(accessToken, path, offset);
+            }
+            catch (HttpClientErrorException hcee)
+            {
+                if (hcee.getStatusCode().value() != 416)
+                {
+                    throw hcee;
+                }
+
+                // The spool does not fit the file any more. Start again.
+                offset = 0;
+                spoolChannel.truncate(0);
+                method = contentClient.getFile(accessToken, path, offset);
+            }
+
+            fileMetadata = contentClient.getFileMetadata(method);
+            String rev = getRev(fileMetadata);
+
+            if (offset > 0)
+            {
+                if (method.getStatusCode() == 206 && rev != null && rev.equals(spooledRev))
+                {
+                    downloadsResumed.incrementAndGet();
+                    bytesResumed.addAndGet(offset);
+
+                    logger.debug("Resuming download of " + path + " rev " + rev + " at " + offset);
+                }
+                else
+                {
+                    // The file has changed in Dropbox since the partial download, or Dropbox ignored the range
+                    logger.debug("Discarding partial download of " + path + ". Rev is now " + rev);
+
+                    offset = 0;
+                    spoolChannel.truncate(0);
+                    getRevFile(spool).delete();
+
+                    if (method.getStatusCode() == 206)
+                    {
+                        method.releaseConnection();
+                        method = contentClient.getFile(accessToken, path, offset);
+                        fileMetadata = contentClient.getFileMetadata(method);
+                        rev = getRev(fileMetadata);
+                    }
+                }
+            }
+
+            long length = method.getResponseContentLength();
+
+            if (offset == 0 && length >= 0 && length <= spoolThreshold)
+            {
+                // Small enough to fetch again if it fails, so go straight to the content store
+                total = copy(method, path, writer);
+            }
+            else
+            {
+                if (offset == 0 && rev != null)
+                {
+                    writeRev(spool, rev);
+                }
+
+                spool(method, spoolChannel);
+
+                total = commit(spoolChannel, getMimetype(method, path), writer);
+
+                getRevFile(spool).delete();
+                spoolChannel.truncate(0);
+            }
+        }
+        finally
+        {
+            if (method != null)
+            {
+                method.releaseConnection();
+            }
+
+            lock.release();
+            spoolChannel.close();
+
+            if (spool.length() == 0)
+            {
+                spool.delete();
+                getRevFile(spool).delete();
+            }
+        }
+
+        long millis = System.currentTimeMillis() - start;
+
+        downloads.incrementAndGet();
+        bytesReceived.addAndGet(total);
+        transferMillis.addAndGet(millis);
+
+        logger.debug("Downloaded " + total + " bytes of " + path + " as " + writer.getMimetype() + " (" + writer.getEncoding() + ") in "
+                     + millis + "ms");
+
+        return fileMetadata;
+    }
+
+
+    /**
+     * Download the whole of the file at path straight into the writer
+     */
+    private JSONObject download(OAuthToken accessToken, String path, ContentWriter writer)
+        throws IOException
+    {
+        GetMethod method = contentClient.getFile(accessToken, path, 0);
+
+        try
+        {
+            copy(method, path, writer);
+
+            return contentClient.getFileMetadata(method);
+        }
+        finally
+        {
+            method.releaseConnection();
+        }
+    }
+
+
+    private long copy(GetMethod method, String path, ContentWriter writer)
+        throws IOException
+    {
+        long total = 0;
+        ByteBuffer buffer = takeBuffer();
+
+        try
+        {
+            ReadableByteChannel source = Channels.newChannel(method.getResponseBodyAsStream());
+
+            // Fill the first buffer and work out the mimetype and encoding from it before anything is written
+            boolean eof = fill(source, buffer);
+            buffer.flip();
+
+            String mimetype = getMimetype(method, path);
+            writer.setMimetype(mimetype);
+            writer.setEncoding(getEncoding(buffer, mimetype));
+
+            WritableByteChannel target = writer.getWritableChannel();
+
+            try
+            {
+                total += drain(buffer, target);
+
+                while (!eof)
+                {
+                    buffer.clear();
+                    eof = fill(source, buffer);
+                    buffer.flip();
+
+                    total += drain(buffer, target);
+                }
+            }
+            finally
+            {
+                target.close();
+            }
+        }
+        finally
+        {
+            releaseBuffer(buffer);
+        }
+
+        return total;
+    }
+
+
+    /**
+     * Append the response body to the spool
+     */
+    private void spool(GetMethod method, FileChannel spoolChannel)
+        throws IOException
+    {
+        ByteBuffer buffer = takeBuffer();
+
+        try
+        {
+            ReadableByteChannel source = Channels.newChannel(method.getResponseBodyAsStream());
+
+            boolean eof = false;
+            while (!eof)
+            {
+                buffer.clear();
+                eof = fill(source, buffer);
+                buffer.flip();
+
+                drain(buffer, spoolChannel);
+            }
+
+            spoolChannel.force(false);
+        }
+        finally
+        {
+            releaseBuffer(buffer);
+        }
+    }
+
+
+    /**
+     * Write the complete spool to the writer
+     */
+    private long commit(FileChannel spoolChannel, String mimetype, ContentWriter writer)
+        throws IOException
+    {
+        long size = spoolChannel.size();
+
+        ByteBuffer sample = ByteBuffer.allocate((int)Math.min(size, DETECTION_SIZE));
+        spoolChannel.read(sample, 0);
+        sample.flip();
+
+        writer.setMimetype(mimetype);
+        writer.setEncoding(getEncoding(sample, mimetype));
+
+        WritableByteChannel target = writer.getWritableChannel();
+
+        try
+        {
+            long position = 0;
+            while (position < size)
+            {
+                position += spoolChannel.transferTo(position, size - position, target);
+            }
+        }
+        finally
+        {
+            target.close();
+        }
+
+        return size;
+    }
+
+
+    /**
+     * Read from source until the buffer is full or there is nothing more to read
+     *
+     * @return true if the end of source was reached
+     */
+    private boolean fill(ReadableByteChannel source, ByteBuffer buffer)
+        throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            if (source.read(buffer) == -1)
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    private int drain(ByteBuffer buffer, WritableByteChannel target)
+        throws IOException
+    {
+        int written = 0;
+
+        while (buffer.hasRemaining())
+        {
+            written += target.write(buffer);
+        }
+
+        return written;
+    }
+
+
+    private String getMimetype(GetMethod method, String path)
+    {
+        String mimetype = null;
+
+        Header contentType = method.getResponseHeader("Content-Type");
+        if (contentType != null)
+        {
+            mimetype = contentType.getValue().split(";")[0].trim();
+        }
+
+        if (mimetype == null || mimetype.length() == 0)
+        {
+            mimetype = mimetypeService.guessMimetype(path);
+        }
+
+        return mimetype;
+    }
+
+
+    private String getEncoding(ByteBuffer buffer, String mimetype)
+    {
+        // Only look at the start of the content, leaving the buffer untouched for writing
+        byte[] sample = new byte[Math.min(buffer.remaining(), DETECTION_SIZE)];
+        buffer.duplicate().get(sample);
+
+        Charset charset = mimetypeService.getContentCharsetFinder().getCharset(new ByteArrayInputStream(sample), mimetype);
+
+        return charset.name();
+    }
+
+
+    private String getRev(JSONObject metadata)
+    {
+        return metadata != null && metadata.get("rev") != null ? metadata.get("rev").toString() : null;
+    }
+
+
+    private File getSpoolFile(NodeRef nodeRef, String user)
+    {
+        File spoolDir = TempFileProvider.getLongLifeTempDir(SPOOL_DIR);
+
+        return new File(spoolDir, nodeRef.getId() + "-" + user.replaceAll("[^A-Za-z0-9._-]", "_") + "-"
+                                  + Integer.toHexString(user.hashCode()) + SPOOL_SUFFIX);
+    }
+
+
+    private File getRevFile(File spool)
+    {
+        return new File(spool.getPath() + REV_SUFFIX);
+    }
+
+
+    /**
+     * @return the rev of the file the spool holds the start of, or null if it is not known
+     */
+    private String readRev(File spool)
+        throws IOException
+    {
+        File revFile = getRevFile(spool);
+
+        if (!revFile.exists())
+        {
+            return null;
+        }
+
+        byte[] bytes = new byte[(int)revFile.length()];
+        FileInputStream in = new FileInputStream(revFile);
+
+        try
+        {
+            int total = 0;
+            int read;
+            while (total < bytes.length && (read = in.read(bytes, total, bytes.length - total)) != -1)
+            {
+                total += read;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        String rev = new String(bytes, UTF_8).trim();
+
+        return rev.length() > 0 ? rev : null;
+    }
+
+
+    /**
+     * Save the rev next to the spool before anything is spooled, so a spool is never resumed with another rev
+     */
+    private void writeRev(File spool, String rev)
+        throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(getRevFile(spool));
+
+        try
+        {
+            out.write(rev.getBytes(UTF_8));
+            out.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+
+    /**
+     * Delete spools and their revs that have not been touched for maxSpoolAge. Done at most once an hour.
+     */
+    private void cleanUp()
+    {
+        long now = System.currentTimeMillis();
+
+        if (now - lastCleanUp < 3600000L)
+        {
+            return;
+        }
+        lastCleanUp = now;
+
+        File[] files = TempFileProvider.getLongLifeTempDir(SPOOL_DIR).listFiles();
+
+        if (files == null)
+        {
+            return;
+        }
+
+        for (File file : files)
+        {
+            if ((file.getName().endsWith(SPOOL_SUFFIX) || file.getName().endsWith(SPOOL_SUFFIX + REV_SUFFIX))
+                && now - file.lastModified() > maxSpoolAge)
+            {
+                // A spool in use has just been written to, so it is never this old
+                if (file.delete())
+                {
+                    logger.debug("Deleted abandoned download spool " + file.getName());
+                }
+            }
+        }
+    }
+
+
+    private ByteBuffer takeBuffer()
+    {
+        ByteBuffer buffer = buffers.poll();
+
+        if (buffer == null || buffer.capacity() != bufferSize)
+        {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+
+        buffer.clear();
+
+        return buffer;
+    }
+
+
+    private void releaseBuffer(ByteBuffer buffer)
+    {
+        buffers.offer(buffer);
+    }
+
+
+    public long getDownloads()
+    {
+        return downloads.get();
+    }
+
+
+    public long getDownloadsResumed()
+    {
+        return downloadsResumed.get();
+    }
+
+
+    public long getBytesReceived()
+    {
+        return bytesReceived.get();
+    }
+
+
+    /**
+     * Bytes that did not have to be downloaded again because a download was resumed
+     *
+     * @return
+     */
+    public long getBytesResumed()
+    {
+        return bytesResumed.get();
+    }
+
+
+    /**
+     * Average throughput of the downloads so far, in bytes per second
+     *
+     * @return
+     */
+    public long getThroughput()
+    {
+        long millis = transferMillis.get();
+
+        return millis > 0 ? bytesReceived.get() * 1000 / millis : 0;
+    }
+}
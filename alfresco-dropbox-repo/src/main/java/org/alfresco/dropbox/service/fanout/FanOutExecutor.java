@@ -0,0 +1,265 @@
+/*
+ * Copyright 2011-2012 Alfresco Software Limited.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.dropbox.service.fanout;
+
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.dropbox.exceptions.DropboxClientException;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.TraceableThreadFactory;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * Runs the same piece of work for a number of users at the same time, each as that user and in its own read only
+ * transaction. At most <code>maxConcurrency</code> users are worked on at once.
+ * <p>
+ * Where the runtime has virtual threads each user gets one and a semaphore bounds how many run at once, otherwise a pool of
+ * <code>maxConcurrency</code> threads is used.
+ * The work must not write to the repository, as users are worked on in separate transactions; it should return what is to
+ * be written so that the caller can write it for all users in one transaction.
+ */
+public class FanOutExecutor
+{
+    private static final Log   logger         = LogFactory.getLog(FanOutExecutor.class);
+
+    private TransactionService transactionService;
+
+    private int                maxConcurrency = 8;
+    private long               timeout        = 600000L;
+
+    private ExecutorService    executor;
+    private Semaphore          permits;
+    private boolean            virtualThreads;
+
+    private final AtomicLong   executions     = new AtomicLong();
+    private final AtomicLong   tasks          = new AtomicLong();
+    private final AtomicLong   failures       = new AtomicLong();
+
+
+    public void setTransactionService(TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+
+    public void setMaxConcurrency(int maxConcurrency)
+    {
+        this.maxConcurrency = maxConcurrency;
+    }
+
+
+    /**
+     * How long to wait for all of the users to be worked on, in milliseconds
+     *
+     * @param timeout
+     */
+    public void setTimeout(long timeout)
+    {
+        this.timeout = timeout;
+    }
+
+
+    public void init()
+    {
+        try
+        {
+            // Only there on Java 21 and later. Looked up by reflection as the module is built for Java 6.
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            executor = (ExecutorService)method.invoke(null);
+            permits = new Semaphore(maxConcurrency);
+            virtualThreads = true;
+        }
+        catch (Exception e)
+        {
+            TraceableThreadFactory threadFactory = new TraceableThreadFactory();
+            threadFactory.setThreadDaemon(true);
+            threadFactory.setNamePrefix("DropboxFanOut");
+
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory);
+            pool.allowCoreThreadTimeOut(true);
+
+            // The pool is bounded already
+            executor = pool;
+            permits = null;
+            virtualThreads = false;
+        }
+
+        logger.info("Dropbox fan out started with " + (virtualThreads ? "virtual threads" : "a thread pool") + ". Max concurrency: "
+                    + maxConcurrency);
+    }
+
+
+    public void destroy()
+    {
+        if (executor != null)
+        {
+            executor.shutdownNow();
+        }
+    }
+
+
+    /**
+     * Do the work as each of the users. A user whose work fails or does not finish in time is logged and recorded as a
+     * failure in the results. Work that has not finished in time is left to run rather than interrupted part way through an
+     * upload; the caller is expected to try the work again for that user later.
+     *
+     * @param users
+     * @param work
+     * @return the result of the work for each user it succeeded for, in the order of users, and the users it failed for
+     */
+    public <R> FanOutResults<R> execute(Collection<String> users, final RunAsWork<R> work)
+    {
+        long start = System.currentTimeMillis();
+
+        Map<String, Future<R>> futures = new LinkedHashMap<String, Future<R>>();
+
+        for (final String user : users)
+        {
+            futures.put(user, executor.submit(new Callable<R>()
+            {
+                public R call()
+                    throws Exception
+                {
+                    if (permits != null)
+                    {
+                        permits.acquire();
+                    }
+
+                    try
+                    {
+                        return AuthenticationUtil.runAs(new RunAsWork<R>()
+                        {
+                            public R doWork()
+                                throws Exception
+                            {
+                                RetryingTransactionCallback<R> txnWork = new RetryingTransactionCallback<R>()
+                                {
+                                    public R execute()
+                                        throws Throwable
+                                    {
+                                        return work.doWork();
+                                    }
+                                };
+
+                                return transactionService.getRetryingTransactionHelper().doInTransaction(txnWork, true, true);
+                            }
+                        }, user);
+                    }
+                    finally
+                    {
+                        if (permits != null)
+                        {
+                            permits.release();
+                        }
+                    }
+                }
+            }));
+        }
+
+        FanOutResults<R> results = new FanOutResults<R>();
+        long deadline = start + timeout;
+
+        for (Map.Entry<String, Future<R>> future : futures.entrySet())
+        {
+            try
+            {
+                results.succeeded(future.getKey(), future.getValue().get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+            }
+            catch (ExecutionException ee)
+            {
+                results.failed(future.getKey(), ee.getCause());
+
+                failures.incrementAndGet();
+                logger.error("Dropbox: Work failed for " + future.getKey() + ": " + ee.getCause().getMessage(), ee.getCause());
+            }
+            catch (TimeoutException te)
+            {
+                // Stop waiting, but let it finish rather than interrupt an upload part way through
+                results.failed(future.getKey(), new DropboxClientException("Dropbox: Work for " + future.getKey() + " did not finish in " + timeout + "ms"));
+
+                failures.incrementAndGet();
+                logger.error("Dropbox: Work for " + future.getKey() + " did not finish in " + timeout + "ms");
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+
+                // Work that has not started yet will not be, work that has is left to finish
+                for (Map.Entry<String, Future<R>> remaining : futures.entrySet())
+                {
+                    if (!results.getResults().containsKey(remaining.getKey()) && !results.getFailures().containsKey(remaining.getKey()))
+                    {
+                        remaining.getValue().cancel(false);
+                        results.failed(remaining.getKey(), ie);
+                    }
+                }
+
+                break;
+            }
+        }
+
+        executions.incrementAndGet();
+        tasks.addAndGet(users.size());
+
+        logger.debug("Dropbox: Fan out to " + users.size() + " users took " + (System.currentTimeMillis() - start) + "ms");
+
+        return results;
+    }
+
+
+    public boolean isVirtualThreads()
+    {
+        return virtualThreads;
+    }
+
+
+    public long getExecutions()
+    {
+        return executions.get();
+    }
+
+
+    public long getTasks()
+    {
+        return tasks.get();
+    }
+
+
+    public long getFailures()
+    {
+        return failures.get();
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2011-2012 Alfresco Software Limited.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.dropbox.service.fanout;
+
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.alfresco.dropbox.exceptions.DropboxUnavailableException;
+import org.alfresco.dropbox.exceptions.FanOutException;
+import org.alfresco.dropbox.exceptions.RateLimitException;
+
+
+/**
+ * What came of working on a number of users with the {@link FanOutExecutor}: the result for each user the work succeeded
+ * for, and why it did not for the others.
+ * <p>
+ * The caller should commit the results it got and then call {@link #rethrow()}, so that the work is tried again for only the
+ * users it failed for.
+ */
+public class FanOutResults<R>
+{
+    private final Map<String, R>         results  = new LinkedHashMap<String, R>();
+    private final Map<String, Throwable> failures = new LinkedHashMap<String, Throwable>();
+
+
+    void succeeded(String user, R result)
+    {
+        results.put(user, result);
+    }
+
+
+    void failed(String user, Throwable cause)
+    {
+        failures.put(user, cause);
+    }
+
+
+    /**
+     * Add the results and failures of another run to these
+     *
+     * @param other
+     */
+    public void addAll(FanOutResults<R> other)
+    {
+        results.putAll(other.results);
+        failures.putAll(other.failures);
+    }
+
+
+    /**
+     * @return the result of the work for each user it succeeded for, in the order of the users
+     */
+    public Map<String, R> getResults()
+    {
+        return results;
+    }
+
+
+    /**
+     * @return why the work failed, for each user it failed for
+     */
+    public Map<String, Throwable> getFailures()
+    {
+        return failures;
+    }
+
+
+    /**
+     * @return true if the work succeeded for every user
+     */
+    public boolean isComplete()
+    {
+        return failures.isEmpty();
+    }
+
+
+    /**
+     * Throw if the work failed for any user. If it was stopped by the Dropbox rate limit or circuit breaker for any of them,
+     * the {@link RateLimitException} or {@link DropboxUnavailableException} is the cause, so the caller can put the work off
+     * until Dropbox accepts requests again.
+     *
+     * @throws FanOutException naming the users the work failed for
+     */
+    public void rethrow()
+    {
+        if (failures.isEmpty())
+        {
+            return;
+        }
+
+        Throwable cause = failures.values().iterator().next();
+
+        for (Throwable failure : failures.values())
+        {
+            if (failure instanceof RateLimitException || failure instanceof DropboxUnavailableException)
+            {
+                cause = failure;
+                break;
+            }
+        }
+
+        throw new FanOutException(failures.keySet(), cause);
+    }
+}
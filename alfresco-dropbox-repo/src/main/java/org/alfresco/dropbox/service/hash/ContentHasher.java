@@ -0,0 +1,443 @@
+/*
+ * Copyright 2011-2012 Alfresco Software Limited.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.dropbox.service.hash;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.dropbox.exceptions.DropboxClientException;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.util.TraceableThreadFactory;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * Computes the Dropbox content hash of Alfresco content. The content is split into 4 MB blocks, each block is hashed with
+ * SHA-256, and the hash of the file is the SHA-256 of the concatenated block hashes, as a lower case hex string.
+ * <p>
+ * Content in the content store never changes for a given content URL, so hashes are cached by content URL and each version
+ * of a file is only read once however many users it is synced to.
+ * <p>
+ * The content is read one block at a time. When there is more than one block the blocks are hashed in parallel on a pool of
+ * <code>threads</code> threads, which defaults to one per processor. The block buffers are shared by all of the files being
+ * hashed, so at most <code>maxBlocksInFlight</code> blocks are held in memory at once however many files are hashed.
+ */
+public class ContentHasher
+{
+    private static final Log          logger            = LogFactory.getLog(ContentHasher.class);
+
+    public static final int           BLOCK_SIZE        = 4194304;
+
+    private static final String       SHA_256           = "SHA-256";
+
+    private static final char[]       HEX               = "0123456789abcdef".toCharArray();
+
+    private int                       cacheSize         = 1000;
+    private int                       threads           = Runtime.getRuntime().availableProcessors();
+    private int                       maxBlocksInFlight = 8;
+
+    private ThreadPoolExecutor        executor;
+
+    // Block buffers not in use, and the number made so far
+    private BlockingQueue<byte[]>     freeBlocks;
+    private final AtomicInteger       blocksCreated     = new AtomicInteger();
+
+    private final AtomicLong          hits              = new AtomicLong();
+    private final AtomicLong          misses            = new AtomicLong();
+    private final AtomicLong          bytesHashed       = new AtomicLong();
+    private final AtomicLong          hashMillis        = new AtomicLong();
+
+    private final Map<String, String> hashes            = new LinkedHashMap<String, String>(16, 0.75f, true)
+    {
+        private static final long serialVersionUID = 4630387364405727436L;
+
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+        {
+            return size() > cacheSize;
+        }
+    };
+
+
+    public void setCacheSize(int cacheSize)
+    {
+        this.cacheSize = cacheSize;
+    }
+
+
+    public void setThreads(int threads)
+    {
+        this.threads = threads;
+    }
+
+
+    /**
+     * Number of blocks that may be read but not yet hashed, across all of the files being hashed. Each block is 4 MB.
+     *
+     * @param maxBlocksInFlight
+     */
+    public void setMaxBlocksInFlight(int maxBlocksInFlight)
+    {
+        this.maxBlocksInFlight = maxBlocksInFlight;
+    }
+
+
+    public void init()
+    {
+        TraceableThreadFactory threadFactory = new TraceableThreadFactory();
+        threadFactory.setThreadDaemon(true);
+        threadFactory.setNamePrefix("DropboxContentHasher");
+
+        executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+
+        freeBlocks = new ArrayBlockingQueue<byte[]>(Math.max(1, maxBlocksInFlight));
+    }
+
+
+    public void destroy()
+    {
+        if (executor != null)
+        {
+            executor.shutdownNow();
+        }
+    }
+
+
+    /**
+     * Get the Dropbox content hash of the content if it has been computed already, without reading the content
+     *
+     * @param reader
+     * @return the hash as a hex string, or null if it is not known
+     */
+    public String getCachedContentHash(ContentReader reader)
+    {
+        synchronized (hashes)
+        {
+            return hashes.get(reader.getContentUrl());
+        }
+    }
+
+
+    /**
+     * Get the Dropbox content hash of the content
+     *
+     * @param reader
+     * @return the hash as a hex string
+     * @throws IOException
+     */
+    public String getContentHash(ContentReader reader)
+        throws IOException
+    {
+        String contentUrl = reader.getContentUrl();
+
+        String hash;
+        synchronized (hashes)
+        {
+            hash = hashes.get(contentUrl);
+        }
+
+        if (hash != null)
+        {
+            hits.incrementAndGet();
+        }
+        else
+        {
+            misses.incrementAndGet();
+
+            long start = System.currentTimeMillis();
+
+            if (reader.getSize() > BLOCK_SIZE && executor != null)
+            {
+                hash = hashBlocksInParallel(reader);
+            }
+            else
+            {
+                hash = hash(reader);
+            }
+
+            synchronized (hashes)
+            {
+                hashes.put(contentUrl, hash);
+            }
+
+            long millis = System.currentTimeMillis() - start;
+
+            bytesHashed.addAndGet(reader.getSize());
+            hashMillis.addAndGet(millis);
+
+            logger.debug("Hashed " + reader.getSize() + " bytes of " + contentUrl + " in " + millis + "ms");
+        }
+
+        return hash;
+    }
+
+
+    private String hash(ContentReader reader)
+        throws IOException
+    {
+        MessageDigest fileDigest = createDigest();
+        MessageDigest blockDigest = createDigest();
+
+        byte[] buffer = new byte[65536];
+        int blockRemaining = BLOCK_SIZE;
+
+        // A ContentReader can only be read once, so always work from a fresh one
+        InputStream inputStream = reader.getReader().getContentInputStream();
+
+        try
+        {
+            int read;
+            while ((read = inputStream.read(buffer, 0, Math.min(buffer.length, blockRemaining))) != -1)
+            {
+                blockDigest.update(buffer, 0, read);
+                blockRemaining -= read;
+
+                if (blockRemaining == 0)
+                {
+                    fileDigest.update(blockDigest.digest());
+                    blockRemaining = BLOCK_SIZE;
+                }
+            }
+        }
+        finally
+        {
+            inputStream.close();
+        }
+
+        if (blockRemaining < BLOCK_SIZE)
+        {
+            fileDigest.update(blockDigest.digest());
+        }
+
+        return toHex(fileDigest.digest());
+    }
+
+
+    private String hashBlocksInParallel(ContentReader reader)
+        throws IOException
+    {
+        MessageDigest fileDigest = createDigest();
+
+        List<Future<byte[]>> blockHashes = new ArrayList<Future<byte[]>>();
+
+        InputStream inputStream = reader.getReader().getContentInputStream();
+
+        try
+        {
+            while (true)
+            {
+                byte[] block = takeBlock();
+                int length;
+
+                try
+                {
+                    length = readBlock(inputStream, block);
+                }
+                catch (IOException ioe)
+                {
+                    freeBlocks.offer(block);
+                    throw ioe;
+                }
+
+                if (length == 0)
+                {
+                    freeBlocks.offer(block);
+                    break;
+                }
+
+                // The block goes back to the free blocks once it is hashed
+                blockHashes.add(executor.submit(new BlockHash(block, length)));
+            }
+
+            // The file hash is over the block hashes in order
+            for (Future<byte[]> blockHash : blockHashes)
+            {
+                fileDigest.update(blockHash.get());
+            }
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new DropboxClientException("Interrupted while hashing " + reader.getContentUrl());
+        }
+        catch (ExecutionException ee)
+        {
+            throw new DropboxClientException("Unable to hash " + reader.getContentUrl() + ": " + ee.getCause().getMessage());
+        }
+        finally
+        {
+            // Blocks still being hashed are left to finish, so that they go back to the free blocks
+            inputStream.close();
+        }
+
+        return toHex(fileDigest.digest());
+    }
+
+
+    /**
+     * Take a free block, making one if fewer than maxBlocksInFlight have been made, otherwise waiting for one to be hashed
+     */
+    private byte[] takeBlock()
+        throws InterruptedException
+    {
+        byte[] block = freeBlocks.poll();
+
+        if (block == null)
+        {
+            if (blocksCreated.incrementAndGet() <= Math.max(1, maxBlocksInFlight))
+            {
+                return new byte[BLOCK_SIZE];
+            }
+
+            blocksCreated.decrementAndGet();
+            block = freeBlocks.take();
+        }
+
+        return block;
+    }
+
+
+    /**
+     * Fill the block from the stream
+     *
+     * @return the number of bytes read, less than a full block only at the end of the stream
+     */
+    private int readBlock(InputStream inputStream, byte[] block)
+        throws IOException
+    {
+        int total = 0;
+
+        while (total < block.length)
+        {
+            int read = inputStream.read(block, total, block.length - total);
+
+            if (read == -1)
+            {
+                break;
+            }
+
+            total += read;
+        }
+
+        return total;
+    }
+
+
+    private MessageDigest createDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance(SHA_256);
+        }
+        catch (NoSuchAlgorithmException nsae)
+        {
+            throw new DropboxClientException(SHA_256 + " is not available");
+        }
+    }
+
+
+    private String toHex(byte[] bytes)
+    {
+        char[] chars = new char[bytes.length * 2];
+
+        for (int i = 0; i < bytes.length; i++)
+        {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+
+        return new String(chars);
+    }
+
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+
+    /**
+     * Average hashing throughput so far, in bytes per second
+     *
+     * @return
+     */
+    public long getThroughput()
+    {
+        long millis = hashMillis.get();
+
+        return millis > 0 ? bytesHashed.get() * 1000 / millis : 0;
+    }
+
+
+    /**
+     * Hashes one block and hands the block back to be reused
+     */
+    private class BlockHash
+        implements Callable<byte[]>
+    {
+        private final byte[] block;
+        private final int    length;
+
+
+        private BlockHash(byte[] block, int length)
+        {
+            this.block = block;
+            this.length = length;
+        }
+
+
+        public byte[] call()
+        {
+            try
+            {
+                MessageDigest blockDigest = createDigest();
+                blockDigest.update(block, 0, length);
+
+                return blockDigest.digest();
+            }
+            finally
+            {
+                freeBlocks.offer(block);
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2011-2012 Alfresco Software Limited.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.dropbox.service.metadata;
+
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Bounded cache of the folders each user is known to have in Dropbox, filled from folder listings, created folders and
+ * uploads. Dropbox creates the folders above a path as needed, so a folder known to exist means the folders above it exist
+ * too. Deleting or moving a path away forgets it and anything below it. Entries are trusted for <code>ttl</code>
+ * milliseconds, as folders can also be removed from the Dropbox side.
+ */
+public class KnownFolderCache
+{
+    private long              ttl        = 600000L;
+    private int               maxEntries = 5000;
+
+    private Map<String, Long> folders;
+
+    private final AtomicLong  hits       = new AtomicLong();
+
+
+    public void setTtl(long ttl)
+    {
+        this.ttl = ttl;
+    }
+
+
+    public void setMaxEntries(int maxEntries)
+    {
+        this.maxEntries = maxEntries;
+    }
+
+
+    public void init()
+    {
+        folders = new LinkedHashMap<String, Long>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 7601324578896147742L;
+
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest)
+            {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+
+    /**
+     * @param user
+     * @param path
+     * @return true if the folder is known to exist in the users Dropbox
+     */
+    public synchronized boolean isKnown(String user, String path)
+    {
+        String key = MetadataCache.getKey(user, path);
+        Long since = folders.get(key);
+
+        if (since != null)
+        {
+            if (System.currentTimeMillis() - since < ttl)
+            {
+                hits.incrementAndGet();
+                return true;
+            }
+
+            folders.remove(key);
+        }
+
+        return false;
+    }
+
+
+    /**
+     * The folder at path, and so every folder above it, exists
+     *
+     * @param user
+     * @param path
+     */
+    public synchronized void exists(String user, String path)
+    {
+        String key = MetadataCache.getKey(user, path);
+        long now = System.currentTimeMillis();
+        int userEnd = key.indexOf('|');
+
+        for (int end = key.length(); end > userEnd + 1; end = key.lastIndexOf('/', end - 1))
+        {
+            folders.put(key.substring(0, end), now);
+        }
+    }
+
+
+    /**
+     * Path, and anything below it, is gone
+     *
+     * @param user
+     * @param path
+     */
+    public synchronized void forget(String user, String path)
+    {
+        String key = MetadataCache.getKey(user, path);
+
+        Iterator<String> keys = folders.keySet().iterator();
+        while (keys.hasNext())
+        {
+            String folderKey = keys.next();
+
+            if (folderKey.equals(key) || folderKey.startsWith(key + "/"))
+            {
+                keys.remove();
+            }
+        }
+    }
+
+
+    /**
+     * Number of folder creations saved because the folder was known to exist
+     *
+     * @return
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+
+    public synchronized int getSize()
+    {
+        return folders.size();
+    }
+}
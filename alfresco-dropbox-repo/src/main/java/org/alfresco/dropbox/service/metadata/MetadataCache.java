@@ -0,0 +1,236 @@
+/*
+ * Copyright 2011-2012 Alfresco Software Limited.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.dropbox.service.metadata;
+
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.social.dropbox.api.Metadata;
+
+
+/**
+ * Bounded LRU cache of the Dropbox metadata, including folder listings, fetched by each user. Entries are keyed by user and
+ * path; Dropbox paths are not case sensitive, so neither is the key.
+ * <p>
+ * An entry younger than <code>ttl</code> milliseconds is used without asking Dropbox. An older entry is revalidated by
+ * sending its hash, and used again if Dropbox answers that it is not modified. Writes made through the service invalidate
+ * the entries of the path, its parent and anything below it.
+ */
+public class MetadataCache
+{
+    private long                        ttl           = 5000L;
+    private int                         maxEntries    = 1000;
+
+    private Map<String, CachedMetadata> cache;
+
+    private final AtomicLong            hits          = new AtomicLong();
+    private final AtomicLong            misses        = new AtomicLong();
+    private final AtomicLong            revalidations = new AtomicLong();
+    private final AtomicLong            invalidations = new AtomicLong();
+
+
+    /**
+     * Milliseconds an entry is used without asking Dropbox
+     *
+     * @param ttl
+     */
+    public void setTtl(long ttl)
+    {
+        this.ttl = ttl;
+    }
+
+
+    public void setMaxEntries(int maxEntries)
+    {
+        this.maxEntries = maxEntries;
+    }
+
+
+    public void init()
+    {
+        cache = new LinkedHashMap<String, CachedMetadata>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 4316570524836172105L;
+
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedMetadata> eldest)
+            {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+
+    /**
+     * The cached metadata of path, fresh or not
+     *
+     * @param user
+     * @param path
+     * @return the entry, or null if there is none
+     */
+    public synchronized CachedMetadata get(String user, String path)
+    {
+        CachedMetadata cached = cache.get(getKey(user, path));
+
+        if (cached == null)
+        {
+            misses.incrementAndGet();
+        }
+        else if (cached.isFresh())
+        {
+            hits.incrementAndGet();
+        }
+
+        return cached;
+    }
+
+
+    public synchronized void put(String user, String path, Metadata metadata)
+    {
+        cache.put(getKey(user, path), new CachedMetadata(metadata));
+    }
+
+
+    /**
+     * Dropbox answered that the cached metadata is not modified
+     *
+     * @param cached
+     */
+    public void revalidated(CachedMetadata cached)
+    {
+        cached.fetched = System.currentTimeMillis();
+        revalidations.incrementAndGet();
+    }
+
+
+    /**
+     * Forget the metadata of path, of its parent folder, whose listing it is in, and of anything below it
+     *
+     * @param user
+     * @param path
+     */
+    public synchronized void invalidate(String user, String path)
+    {
+        String key = getKey(user, path);
+        String parentKey = key.substring(0, Math.max(key.lastIndexOf('/'), key.indexOf('|') + 1));
+
+        Iterator<String> keys = cache.keySet().iterator();
+        while (keys.hasNext())
+        {
+            String cachedKey = keys.next();
+
+            if (cachedKey.equals(key) || cachedKey.equals(parentKey) || cachedKey.startsWith(key + "/"))
+            {
+                keys.remove();
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+
+    static String getKey(String user, String path)
+    {
+        if (path.startsWith("/"))
+        {
+            path = path.substring(1);
+        }
+        if (path.endsWith("/"))
+        {
+            path = path.substring(0, path.length() - 1);
+        }
+
+        return user + "|" + path.toLowerCase();
+    }
+
+
+    /**
+     * Number of lookups answered without asking Dropbox
+     *
+     * @return
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+
+    /**
+     * Number of entries Dropbox answered were not modified
+     *
+     * @return
+     */
+    public long getRevalidations()
+    {
+        return revalidations.get();
+    }
+
+
+    public long getInvalidations()
+    {
+        return invalidations.get();
+    }
+
+
+    public synchronized int getSize()
+    {
+        return cache.size();
+    }
+
+
+    public class CachedMetadata
+    {
+        private final Metadata metadata;
+        private volatile long  fetched;
+
+
+        private CachedMetadata(Metadata metadata)
+        {
+            this.metadata = metadata;
+            this.fetched = System.currentTimeMillis();
+        }
+
+
+        public Metadata getMetadata()
+        {
+            return metadata;
+        }
+
+
+        /**
+         * @return the hash of the folder listing, or null if it is not a folder
+         */
+        public String getHash()
+        {
+            return metadata.getHash();
+        }
+
+
+        public boolean isFresh()
+        {
+            return System.currentTimeMillis() - fetched < ttl;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2011-2012 Alfresco Software Limited.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.dropbox.service.metadata;
+
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Bounded, short lived cache of the paths each user is known not to have in Dropbox, so that deletes of paths that are
+ * already gone do not each cost a request. A path is missing if it, or any folder above it, was found missing or deleted
+ * less than <code>ttl</code> milliseconds ago. Creating or uploading anything at a path forgets the path, the folders above
+ * it and anything below it.
+ */
+public class MissingPathCache
+{
+    private long              ttl        = 30000L;
+    private int               maxEntries = 1000;
+
+    private Map<String, Long> missing;
+
+    private final AtomicLong  hits       = new AtomicLong();
+
+
+    /**
+     * Milliseconds a path is known to be missing for
+     *
+     * @param ttl
+     */
+    public void setTtl(long ttl)
+    {
+        this.ttl = ttl;
+    }
+
+
+    public void setMaxEntries(int maxEntries)
+    {
+        this.maxEntries = maxEntries;
+    }
+
+
+    public void init()
+    {
+        missing = new LinkedHashMap<String, Long>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = -2094735521760928411L;
+
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest)
+            {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+
+    /**
+     * @param user
+     * @param path
+     * @return true if path, or a folder above it, is known to be missing
+     */
+    public synchronized boolean isMissing(String user, String path)
+    {
+        String key = MetadataCache.getKey(user, path);
+        long now = System.currentTimeMillis();
+        int userEnd = key.indexOf('|');
+
+        // The path itself, then each folder above it
+        for (int end = key.length(); end > userEnd + 1; end = key.lastIndexOf('/', end - 1))
+        {
+            String candidate = key.substring(0, end);
+            Long since = missing.get(candidate);
+
+            if (since != null)
+            {
+                if (now - since < ttl)
+                {
+                    hits.incrementAndGet();
+                    return true;
+                }
+
+                missing.remove(candidate);
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Dropbox answered that path is not found, or it was deleted
+     *
+     * @param user
+     * @param path
+     */
+    public synchronized void missing(String user, String path)
+    {
+        missing.put(MetadataCache.getKey(user, path), System.currentTimeMillis());
+    }
+
+
+    /**
+     * Something was created at path
+     *
+     * @param user
+     * @param path
+     */
+    public synchronized void created(String user, String path)
+    {
+        String key = MetadataCache.getKey(user, path);
+
+        Iterator<String> keys = missing.keySet().iterator();
+        while (keys.hasNext())
+        {
+            String missingKey = keys.next();
+
+            if (missingKey.equals(key) || missingKey.startsWith(key + "/") || key.startsWith(missingKey + "/"))
+            {
+                keys.remove();
+            }
+        }
+    }
+
+
+    /**
+     * Number of requests saved because the path was known to be missing
+     *
+     * @return
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+
+    public synchronized int getSize()
+    {
+        return missing.size();
+    }
+}
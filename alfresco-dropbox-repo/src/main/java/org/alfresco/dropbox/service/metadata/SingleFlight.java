@@ -0,0 +1,135 @@
+/*
+ * Copyright 2011-2012 Alfresco Software Limited.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.dropbox.service.metadata;
+
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.dropbox.exceptions.DropboxClientException;
+
+
+/**
+ * Runs one call per key at a time. A caller that asks for a key whose call is already running waits for that call and gets
+ * its result, or its exception, instead of making the call again.
+ */
+public class SingleFlight<V>
+{
+    private final ConcurrentMap<String, FutureTask<V>> inFlight = new ConcurrentHashMap<String, FutureTask<V>>();
+
+    private final AtomicLong                           calls    = new AtomicLong();
+    private final AtomicLong                           shared   = new AtomicLong();
+
+
+    /**
+     * Make the call, or wait for the one already running for key
+     *
+     * @param key
+     * @param call
+     * @return the result of the call
+     */
+    public V execute(String key, Callable<V> call)
+    {
+        FutureTask<V> task = new FutureTask<V>(call);
+        FutureTask<V> running = inFlight.putIfAbsent(key, task);
+
+        if (running == null)
+        {
+            calls.incrementAndGet();
+
+            try
+            {
+                task.run();
+            }
+            finally
+            {
+                inFlight.remove(key, task);
+            }
+
+            return getResult(task);
+        }
+
+        shared.incrementAndGet();
+
+        return getResult(running);
+    }
+
+
+    private V getResult(FutureTask<V> task)
+    {
+        try
+        {
+            return task.get();
+        }
+        catch (ExecutionException ee)
+        {
+            Throwable cause = ee.getCause();
+
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error)
+            {
+                throw (Error)cause;
+            }
+
+            throw new DropboxClientException(cause.getMessage(), cause);
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new DropboxClientException("Interrupted while waiting for a Dropbox call");
+        }
+    }
+
+
+    /**
+     * Number of calls made
+     *
+     * @return
+     */
+    public long getCalls()
+    {
+        return calls.get();
+    }
+
+
+    /**
+     * Number of callers that shared a call already running instead of making their own
+     *
+     * @return
+     */
+    public long getShared()
+    {
+        return shared.get();
+    }
+
+
+    /**
+     * Number of calls running now
+     *
+     * @return
+     */
+    public int getInFlight()
+    {
+        return inFlight.size();
+    }
+}
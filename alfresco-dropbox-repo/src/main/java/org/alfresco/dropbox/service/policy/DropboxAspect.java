@@ -16,17 +16,12 @@
 package org.alfresco.dropbox.service.policy;
 
 
-import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 import org.alfresco.dropbox.DropboxConstants;
 import org.alfresco.dropbox.service.DropboxService;
-import org.alfresco.dropbox.service.action.DropboxDeleteAction;
-import org.alfresco.dropbox.service.action.DropboxMoveAction;
-import org.alfresco.dropbox.service.action.DropboxUpdateAction;
+import org.alfresco.dropbox.service.queue.OutboundQueue;
 import org.alfresco.model.ContentModel;
 import org.alfresco.repo.content.ContentServicePolicies.OnContentUpdatePolicy;
 import org.alfresco.repo.copy.CopyBehaviourCallback;
@@ -39,7 +34,6 @@ import org.alfresco.repo.node.NodeServicePolicies.OnMoveNodePolicy;
 import org.alfresco.repo.policy.JavaBehaviour;
 import org.alfresco.repo.policy.PolicyComponent;
 import org.alfresco.repo.policy.Behaviour.NotificationFrequency;
-import org.alfresco.service.cmr.action.ActionService;
 import org.alfresco.service.cmr.repository.ChildAssociationRef;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
@@ -57,16 +51,12 @@ public class DropboxAspect
     implements OnContentUpdatePolicy, OnCreateChildAssociationPolicy, BeforeDeleteNodePolicy, OnCopyNodePolicy, OnMoveNodePolicy
 {
 
-    private static final Log    log                   = LogFactory.getLog(DropboxAspect.class);
+    private static final Log log = LogFactory.getLog(DropboxAspect.class);
 
-    private PolicyComponent     policyComponent;
-    private NodeService         nodeService;
-    private ActionService       actionService;
-    private DropboxService      dropboxService;
-
-    private static final String DROPBOX_UPDATE_ACTION = "dropboxUpdateAction";
-    private static final String DROPBOX_DELETE_ACTION = "dropboxDeleteAction";
-    private static final String DROPBOX_MOVE_ACTION   = "dropboxMoveAction";
+    private PolicyComponent  policyComponent;
+    private NodeService      nodeService;
+    private DropboxService   dropboxService;
+    private OutboundQueue    outboundQueue;
 
 
     public void setPolicyComponent(final PolicyComponent policyComponent)
@@ -81,15 +71,15 @@ public class DropboxAspect
     }
 
 
-    public void setActionService(ActionService actionService)
+    public void setDropboxService(DropboxService dropboxService)
     {
-        this.actionService = actionService;
+        this.dropboxService = dropboxService;
     }
 
 
-    public void setDropboxService(DropboxService dropboxService)
+    public void setOutboundQueue(OutboundQueue outboundQueue)
     {
-        this.dropboxService = dropboxService;
+        this.outboundQueue = outboundQueue;
     }
 
 
@@ -112,9 +102,10 @@ public class DropboxAspect
                 nodeService.addAspect(nodeRef, DropboxConstants.Model.ASPECT_SYNC_IN_PROGRESS, null);
             }
 
-            actionService.executeAction(actionService.createAction(DROPBOX_UPDATE_ACTION), nodeRef, false, true);
+            // Editors often save several times in a row; the queue only sends the node once the content settles
+            outboundQueue.update(nodeRef, false);
 
-            log.debug("Dropbox: Updating " + nodeRef.toString() + "in Dropbox");
+            log.debug("Dropbox: Update of " + nodeRef.toString() + " in Dropbox queued");
         }
     }
 
@@ -126,10 +117,7 @@ public class DropboxAspect
             nodeService.addAspect(childAssocRef.getChildRef(), DropboxConstants.Model.ASPECT_SYNC_IN_PROGRESS, null);
         }
 
-        Map<String, Serializable> params = new HashMap<String, Serializable>();
-        params.put(DropboxUpdateAction.DROPBOX_USE_PARENT, true);
-
-        actionService.executeAction(actionService.createAction(DROPBOX_UPDATE_ACTION, params), childAssocRef.getChildRef(), false, true);
+        outboundQueue.update(childAssocRef.getChildRef(), true);
 
         log.debug("Dropbox: New child (" + childAssocRef.getChildRef().toString() + ") in Synced Folder"
                   + childAssocRef.getParentRef().toString() + "will be synced to Dropbox.");
@@ -140,15 +128,12 @@ public class DropboxAspect
     {
         if (nodeService.exists(nodeRef))
         {
-            List<String> users = new ArrayList<String>();
-            Map<String, Serializable> params = new HashMap<String, Serializable>();
-            params.put(DropboxDeleteAction.DROPBOX_PATH, dropboxService.getDropboxPath(nodeRef) + "/"
-                                                         + nodeService.getProperty(nodeRef, ContentModel.PROP_NAME));
+            ArrayList<String> users = new ArrayList<String>();
+            String path = dropboxService.getDropboxPath(nodeRef) + "/" + nodeService.getProperty(nodeRef, ContentModel.PROP_NAME);
             Map<String, NodeRef> syncedUsers = dropboxService.getSyncedUsers(nodeRef);
             users.addAll(syncedUsers.keySet());
-            params.put(DropboxDeleteAction.DROPBOX_USERS, (Serializable)users);
 
-            actionService.executeAction(actionService.createAction(DROPBOX_DELETE_ACTION, params), nodeRef, false, true);
+            outboundQueue.delete(nodeRef, path, users);
 
             log.debug("Dropbox: Deleting " + nodeRef.toString() + " from Dropbox.");
         }
@@ -176,12 +161,7 @@ public class DropboxAspect
             nodeService.addAspect(newChildAssocRef.getChildRef(), DropboxConstants.Model.ASPECT_SYNC_IN_PROGRESS, null);
         }
 
-        Map<String, Serializable> params = new HashMap<String, Serializable>();
-
-        params.put(DropboxMoveAction.DROPBOX_FROM_PATH, oldChildAssocRef);
-        params.put(DropboxMoveAction.DROPBOX_TO_PATH, newChildAssocRef);
-
-        actionService.executeAction(actionService.createAction(DROPBOX_MOVE_ACTION, params), null, false, true);
+        outboundQueue.move(oldChildAssocRef, newChildAssocRef);
 
         log.debug("Dropbox: Moving" + newChildAssocRef.getChildRef().toString() + " and any children");
     }
@@ -0,0 +1,441 @@
+/*
+ * Copyright 2011-2012 Alfresco Software Limited.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.dropbox.service.polling;
+
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.dropbox.exceptions.DropboxUnavailableException;
+import org.alfresco.dropbox.exceptions.RateLimitException;
+import org.alfresco.dropbox.service.connection.DropboxContentClient;
+import org.alfresco.dropbox.service.polling.PollLeases.Lease;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.util.TraceableThreadFactory;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.simple.JSONObject;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.extensions.surf.util.AbstractLifecycleBean;
+
+
+/**
+ * Waits on the delta cursor of each connected user with Dropbox long polls, and polls the users Dropbox with the
+ * {@link DropboxDeltaPollerImpl} as soon as it reports changes. Changes reach Alfresco within seconds rather than at the next
+ * run of the polling job, which is kept as a fallback.
+ * <p>
+ * A long poll holds its connection until Dropbox answers, so the users are watched in turn by a small number of threads.
+ * While there are no more users than threads each long poll waits for <code>timeout</code> seconds; otherwise for the
+ * shortest time Dropbox allows. A thread never holds a long poll while other users are due to be watched. Their Dropbox is
+ * polled straight away instead, and they are watched again after <code>checkInterval</code> milliseconds, so a user is not
+ * left waiting for every other user's long poll. Changes made while a user is not being watched are reported as soon as they
+ * next are.
+ * <p>
+ * In a cluster each user is watched by one server at a time, the one holding the lease on watching them. A server only takes
+ * a lease when one of its threads is free, so the users are shared out between the servers, and taken over by the others if
+ * a server stops.
+ */
+public class DropboxChangeWatcher
+    extends AbstractLifecycleBean
+{
+    private static final Log                   log             = LogFactory.getLog(DropboxChangeWatcher.class);
+
+    private static final int                   MIN_TIMEOUT     = 30;
+
+    private DropboxDeltaPollerImpl             deltaPoller;
+    private DropboxContentClient               contentClient;
+    private PollLeases                         pollLeases;
+
+    private int                                threads         = 4;
+    private int                                timeout         = 120;
+    private long                               refreshInterval = 300000L;
+    private long                               errorDelay      = 60000L;
+    private long                               checkInterval   = 30000L;
+
+    private ExecutorService                    watchers;
+    private ScheduledExecutorService           scheduler;
+
+    private final DelayQueue<Watch>            watches         = new DelayQueue<Watch>();
+    private final ConcurrentMap<String, Watch> watched         = new ConcurrentHashMap<String, Watch>();
+
+    private final AtomicLong                   longPolls       = new AtomicLong();
+    private final AtomicLong                   checks          = new AtomicLong();
+    private final AtomicLong                   changes         = new AtomicLong();
+    private final AtomicLong                   errors          = new AtomicLong();
+
+
+    public void setDeltaPoller(DropboxDeltaPollerImpl deltaPoller)
+    {
+        this.deltaPoller = deltaPoller;
+    }
+
+
+    public void setContentClient(DropboxContentClient contentClient)
+    {
+        this.contentClient = contentClient;
+    }
+
+
+    public void setPollLeases(PollLeases pollLeases)
+    {
+        this.pollLeases = pollLeases;
+    }
+
+
+    /**
+     * Number of long polls held at once
+     * 
+     * @param threads
+     */
+    public void setThreads(int threads)
+    {
+        this.threads = threads;
+    }
+
+
+    /**
+     * Seconds Dropbox is asked to hold a long poll for, from 30 to 480
+     * 
+     * @param timeout
+     */
+    public void setTimeout(int timeout)
+    {
+        this.timeout = Math.max(MIN_TIMEOUT, Math.min(timeout, 480));
+    }
+
+
+    /**
+     * Milliseconds between looking for users who have connected to or disconnected from Dropbox
+     * 
+     * @param refreshInterval
+     */
+    public void setRefreshInterval(long refreshInterval)
+    {
+        this.refreshInterval = refreshInterval;
+    }
+
+
+    /**
+     * Milliseconds before a user is watched again after a failure
+     * 
+     * @param errorDelay
+     */
+    public void setErrorDelay(long errorDelay)
+    {
+        this.errorDelay = errorDelay;
+    }
+
+
+    /**
+     * Milliseconds before a user whose Dropbox was polled, rather than long polled, is watched again
+     * 
+     * @param checkInterval
+     */
+    public void setCheckInterval(long checkInterval)
+    {
+        this.checkInterval = checkInterval;
+    }
+
+
+    @Override
+    protected void onBootstrap(ApplicationEvent event)
+    {
+        TraceableThreadFactory threadFactory = new TraceableThreadFactory();
+        threadFactory.setThreadDaemon(true);
+        threadFactory.setNamePrefix("DropboxChangeWatcher");
+
+        watchers = Executors.newFixedThreadPool(threads, threadFactory);
+        for (int i = 0; i < threads; i++)
+        {
+            watchers.execute(new Runnable()
+            {
+                public void run()
+                {
+                    watch();
+                }
+            });
+        }
+
+        scheduler = new ScheduledThreadPoolExecutor(1, threadFactory);
+        scheduler.scheduleWithFixedDelay(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    refresh();
+                }
+                catch (Throwable t)
+                {
+                    log.error("Dropbox: Unable to find the users to watch: " + t.getMessage(), t);
+                }
+            }
+        }, 0, refreshInterval, TimeUnit.MILLISECONDS);
+    }
+
+
+    @Override
+    protected void onShutdown(ApplicationEvent event)
+    {
+        if (scheduler != null)
+        {
+            scheduler.shutdownNow();
+        }
+
+        if (watchers != null)
+        {
+            watchers.shutdownNow();
+        }
+    }
+
+
+    /**
+     * Start watching users who have connected to Dropbox, and stop watching those who have disconnected
+     */
+    public void refresh()
+    {
+        Map<String, NodeRef> users = deltaPoller.getConnectedUsers();
+
+        for (Map.Entry<String, NodeRef> user : users.entrySet())
+        {
+            Watch watch = new Watch(user.getKey(), user.getValue());
+
+            if (watched.putIfAbsent(user.getKey(), watch) == null)
+            {
+                watches.add(watch);
+            }
+        }
+
+        // Their watches are dropped when next due
+        for (Iterator<String> i = watched.keySet().iterator(); i.hasNext();)
+        {
+            if (!users.containsKey(i.next()))
+            {
+                i.remove();
+            }
+        }
+
+        log.debug("Dropbox: Watching " + watched.size() + " users for changes.");
+    }
+
+
+    private void watch()
+    {
+        while (!Thread.currentThread().isInterrupted())
+        {
+            Watch watch;
+
+            try
+            {
+                watch = watches.take();
+            }
+            catch (InterruptedException ie)
+            {
+                return;
+            }
+
+            if (watched.get(watch.user) != watch)
+            {
+                continue;
+            }
+
+            long delay;
+
+            try
+            {
+                delay = watch(watch);
+            }
+            catch (RateLimitException rle)
+            {
+                delay = Math.max(rle.getRetryAfter(), 0);
+            }
+            catch (DropboxUnavailableException due)
+            {
+                delay = due.getRetryAfter();
+            }
+            catch (Throwable t)
+            {
+                errors.incrementAndGet();
+                log.warn("Dropbox: Unable to watch the Dropbox of " + watch.user + ": " + t.getMessage());
+
+                delay = errorDelay;
+            }
+
+            watch.due = System.currentTimeMillis() + delay;
+            watches.add(watch);
+        }
+    }
+
+
+    /**
+     * Long poll the users cursor, and poll their Dropbox if it has changed
+     * 
+     * @return milliseconds before the user is to be watched again
+     */
+    private long watch(Watch watch)
+        throws Exception
+    {
+        Lease lease = pollLeases.acquire("watch", watch.user);
+
+        if (lease == null)
+        {
+            // Another server is watching the user
+            return timeout * 1000L;
+        }
+
+        try
+        {
+            return watch(watch, lease);
+        }
+        finally
+        {
+            pollLeases.release(lease);
+        }
+    }
+
+
+    private long watch(Watch watch, Lease lease)
+        throws Exception
+    {
+        String cursor = deltaPoller.getCursor(watch.person);
+
+        if (cursor == null)
+        {
+            // The first poll gets the user a cursor to watch
+            deltaPoller.poll(watch.user, watch.person);
+
+            return 0;
+        }
+
+        if (isOthersDue())
+        {
+            // Holding a long poll now would keep the others waiting for it
+            deltaPoller.poll(watch.user, watch.person);
+            checks.incrementAndGet();
+
+            return checkInterval;
+        }
+
+        JSONObject response = contentClient.longpollDelta(cursor, watched.size() > threads ? MIN_TIMEOUT : timeout);
+        longPolls.incrementAndGet();
+
+        if (Boolean.TRUE.equals(response.get("changes")) && lease.isHeld())
+        {
+            changes.incrementAndGet();
+            deltaPoller.poll(watch.user, watch.person);
+        }
+
+        Object backoff = response.get("backoff");
+
+        return backoff instanceof Number ? ((Number)backoff).longValue() * 1000 : 0;
+    }
+
+
+    private boolean isOthersDue()
+    {
+        Watch next = watches.peek();
+
+        return next != null && next.getDelay(TimeUnit.MILLISECONDS) <= 0;
+    }
+
+
+    /**
+     * @return number of users being watched
+     */
+    public int getWatched()
+    {
+        return watched.size();
+    }
+
+
+    /**
+     * @return number of long polls answered
+     */
+    public long getLongPolls()
+    {
+        return longPolls.get();
+    }
+
+
+    /**
+     * @return number of users polled rather than long polled, as others were due to be watched
+     */
+    public long getChecks()
+    {
+        return checks.get();
+    }
+
+
+    /**
+     * @return number of long polls that reported changes
+     */
+    public long getChanges()
+    {
+        return changes.get();
+    }
+
+
+    /**
+     * @return number of watches that failed
+     */
+    public long getErrors()
+    {
+        return errors.get();
+    }
+
+
+    /**
+     * A user to watch, and when
+     */
+    private static class Watch
+        implements Delayed
+    {
+        private final String  user;
+        private final NodeRef person;
+        private volatile long due;
+
+
+        private Watch(String user, NodeRef person)
+        {
+            this.user = user;
+            this.person = person;
+        }
+
+
+        public long getDelay(TimeUnit unit)
+        {
+            return unit.convert(due - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+
+        public int compareTo(Delayed other)
+        {
+            long diff = getDelay(TimeUnit.MILLISECONDS) - other.getDelay(TimeUnit.MILLISECONDS);
+
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+    }
+}
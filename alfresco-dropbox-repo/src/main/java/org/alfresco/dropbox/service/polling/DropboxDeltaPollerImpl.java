@@ -0,0 +1,455 @@
+/*
+ * Copyright 2011-2012 Alfresco Software Limited.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.dropbox.service.polling;
+
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.alfresco.dropbox.DropboxConstants;
+import org.alfresco.dropbox.exceptions.DropboxUnavailableException;
+import org.alfresco.dropbox.exceptions.RateLimitException;
+import org.alfresco.dropbox.service.DropboxService;
+import org.alfresco.dropbox.service.delta.DeltaPage;
+import org.alfresco.dropbox.service.delta.DeltaPage.Entry;
+import org.alfresco.dropbox.service.polling.PollLeases.Lease;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.policy.BehaviourFilter;
+import org.alfresco.repo.search.impl.lucene.LuceneQueryParserException;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.model.FileFolderService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.search.ResultSet;
+import org.alfresco.service.cmr.search.SearchService;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.social.dropbox.api.Metadata;
+
+
+/**
+ * Polls the Dropbox of each connected user for what changed since the last poll, rather than walking every synced folder
+ * and document. The delta cursor of each user is kept on their person node and only moves on once the changes it covers
+ * have been tried, so a quiet Dropbox costs one call per user per poll.
+ * <p>
+ * Changed files already synced by the user are downloaded if their rev differs from the one persisted for the user. New
+ * files and folders in a folder the user syncs are added to it. As with {@link DropboxPollerImpl}, content deleted from
+ * Dropbox is kept in Alfresco.
+ */
+public class DropboxDeltaPollerImpl
+    implements DropboxPoller
+{
+    private static final Log    log                   = LogFactory.getLog(DropboxDeltaPollerImpl.class);
+
+    private SearchService       searchService;
+    private NodeService         nodeService;
+    private FileFolderService   fileFolderService;
+    private TransactionService  transactionService;
+    private BehaviourFilter     behaviourFilter;
+    private DropboxService      dropboxService;
+    private PollCoordinator     pollCoordinator;
+    private PollLeases          pollLeases;
+
+    private static final String CONNECTED_USERS_QUERY = "ASPECT:\"" + DropboxConstants.Model.ASPECT_DROBOX_OAUTH + "\"";
+
+
+    public void setSearchService(SearchService searchService)
+    {
+        this.searchService = searchService;
+    }
+
+
+    public void setNodeService(NodeService nodeService)
+    {
+        this.nodeService = nodeService;
+    }
+
+
+    public void setFileFolderService(FileFolderService fileFolderService)
+    {
+        this.fileFolderService = fileFolderService;
+    }
+
+
+    public void setTransactionService(TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+
+    public void setBehaviourFilter(BehaviourFilter behaviourFilter)
+    {
+        this.behaviourFilter = behaviourFilter;
+    }
+
+
+    public void setDropboxService(DropboxService dropboxService)
+    {
+        this.dropboxService = dropboxService;
+    }
+
+
+    public void setPollCoordinator(PollCoordinator pollCoordinator)
+    {
+        this.pollCoordinator = pollCoordinator;
+    }
+
+
+    public void setPollLeases(PollLeases pollLeases)
+    {
+        this.pollLeases = pollLeases;
+    }
+
+
+    public void execute()
+    {
+        log.debug("Dropbox delta poller initiated.");
+
+        Map<String, NodeRef> users = getConnectedUsers();
+        Map<String, Runnable> tasks = new LinkedHashMap<String, Runnable>();
+
+        for (Map.Entry<String, NodeRef> user : users.entrySet())
+        {
+            final String userName = user.getKey();
+            final NodeRef person = user.getValue();
+
+            // If a poll fails the users cursor has not moved, so the same changes are asked for next time
+            tasks.put(userName, new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        poll(userName, person);
+                    }
+                    catch (DropboxUnavailableException due)
+                    {
+                        log.info("Dropbox is unavailable. The Dropbox of " + userName + " is polled with the next run.");
+                    }
+                }
+            });
+        }
+
+        pollCoordinator.execute("users", tasks);
+    }
+
+
+    /**
+     * @return the person node of each user who has completed connecting to Dropbox, by user name
+     */
+    Map<String, NodeRef> getConnectedUsers()
+    {
+        return AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Map<String, NodeRef>>()
+        {
+            public Map<String, NodeRef> doWork()
+                throws Exception
+            {
+                RetryingTransactionCallback<Map<String, NodeRef>> txnWork = new RetryingTransactionCallback<Map<String, NodeRef>>()
+                {
+                    public Map<String, NodeRef> execute()
+                        throws Exception
+                    {
+                        Map<String, NodeRef> users = new LinkedHashMap<String, NodeRef>();
+
+                        ResultSet resultSet = null;
+                        try
+                        {
+                            resultSet = searchService.query(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, SearchService.LANGUAGE_LUCENE, CONNECTED_USERS_QUERY);
+
+                            for (NodeRef person : resultSet.getNodeRefs())
+                            {
+                                if (nodeService.exists(person)
+                                    && Boolean.TRUE.equals(nodeService.getProperty(person, DropboxConstants.Model.PROP_OAUTH_COMPLETE)))
+                                {
+                                    users.put((String)nodeService.getProperty(person, ContentModel.PROP_USERNAME), person);
+                                }
+                            }
+                        }
+                        catch (LuceneQueryParserException lqpe)
+                        {
+                            log.info("Unable to perform connected users query: " + lqpe.getMessage());
+                        }
+                        finally
+                        {
+                            if (resultSet != null)
+                            {
+                                resultSet.close();
+                            }
+                        }
+
+                        return users;
+                    }
+                };
+
+                return transactionService.getRetryingTransactionHelper().doInTransaction(txnWork, true);
+            }
+        }, AuthenticationUtil.getAdminUserName());
+    }
+
+
+    /**
+     * @return the delta cursor of the user, or null if their Dropbox has not been polled yet
+     */
+    String getCursor(final NodeRef person)
+    {
+        return AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<String>()
+        {
+            public String doWork()
+                throws Exception
+            {
+                RetryingTransactionCallback<String> txnWork = new RetryingTransactionCallback<String>()
+                {
+                    public String execute()
+                        throws Exception
+                    {
+                        return (String)nodeService.getProperty(person, DropboxConstants.Model.PROP_DELTA_CURSOR);
+                    }
+                };
+
+                return transactionService.getRetryingTransactionHelper().doInTransaction(txnWork, true);
+            }
+        }, AuthenticationUtil.getAdminUserName());
+    }
+
+
+    /**
+     * Apply the changes in the users Dropbox, a page at a time. Each change is applied in its own transaction, and the
+     * cursor moved past the page once all its changes have been tried. Nothing is done if the user is already being polled, on this server or another.
+     */
+    void poll(final String user, final NodeRef person)
+    {
+        Lease lease = pollLeases.acquire("user", user);
+
+        if (lease == null)
+        {
+            log.debug("Dropbox of " + user + " is already being polled.");
+            return;
+        }
+
+        try
+        {
+            pollChanges(user, person, lease);
+        }
+        finally
+        {
+            pollLeases.release(lease);
+        }
+    }
+
+
+    private void pollChanges(final String user, final NodeRef person, final Lease lease)
+    {
+        AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Object>()
+        {
+            public Object doWork()
+                throws Exception
+            {
+                DeltaPage delta;
+                int changes = 0;
+                int failures = 0;
+
+                do
+                {
+                    delta = getDelta(user, person);
+
+                    for (Entry entry : delta.getEntries())
+                    {
+                        if (!apply(user, entry))
+                        {
+                            failures++;
+                        }
+                    }
+
+                    setCursor(person, delta.getCursor());
+                    changes += delta.getEntries().size();
+                }
+                while (delta.hasMore() && lease.isHeld());
+
+                if (failures > 0)
+                {
+                    log.warn("Dropbox delta for " + user + " had " + failures + " changes that could not be applied.");
+                }
+
+                log.debug("Dropbox delta for " + user + " had " + changes + " changes.");
+
+                return null;
+            }
+        }, user);
+    }
+
+
+    private DeltaPage getDelta(final String user, final NodeRef person)
+    {
+        RetryingTransactionCallback<DeltaPage> txnWork = new RetryingTransactionCallback<DeltaPage>()
+        {
+            public DeltaPage execute()
+                throws Exception
+            {
+                String cursor = (String)nodeService.getProperty(person, DropboxConstants.Model.PROP_DELTA_CURSOR);
+
+                DeltaPage delta = dropboxService.getDelta(cursor);
+
+                if (delta.isReset())
+                {
+                    log.debug("Dropbox delta for " + user + " starts over. All synced content will be checked.");
+                }
+
+                return delta;
+            }
+        };
+
+        return transactionService.getRetryingTransactionHelper().doInTransaction(txnWork, true);
+    }
+
+
+    private void setCursor(final NodeRef person, final String cursor)
+    {
+        RetryingTransactionCallback<Object> txnWork = new RetryingTransactionCallback<Object>()
+        {
+            public Object execute()
+                throws Exception
+            {
+                nodeService.setProperty(person, DropboxConstants.Model.PROP_DELTA_CURSOR, cursor);
+                return null;
+            }
+        };
+
+        transactionService.getRetryingTransactionHelper().doInTransaction(txnWork, false, true);
+    }
+
+
+    /**
+     * Apply a single change in its own transaction, so a change that can never be applied, such as a name Alfresco does
+     * not accept or a node the user may not write, does not hold back the cursor and every change after it. Failures
+     * other than Dropbox being unavailable or rate limited are logged and the change is skipped.
+     *
+     * @return false if the change could not be applied
+     */
+    private boolean apply(final String user, final Entry entry)
+    {
+        RetryingTransactionCallback<Object> txnWork = new RetryingTransactionCallback<Object>()
+        {
+            public Object execute()
+                throws Exception
+            {
+                // The changes come from Dropbox, so are not sent back to it
+                behaviourFilter.disableBehaviour(DropboxConstants.Model.ASPECT_DROPBOX);
+
+                applyEntry(user, entry);
+                return null;
+            }
+        };
+
+        try
+        {
+            transactionService.getRetryingTransactionHelper().doInTransaction(txnWork, false, true);
+            return true;
+        }
+        catch (DropboxUnavailableException due)
+        {
+            throw due;
+        }
+        catch (RateLimitException rle)
+        {
+            throw rle;
+        }
+        catch (RuntimeException re)
+        {
+            log.error("Unable to apply " + entry.getPath() + " from the Dropbox of " + user + ". The change is skipped.", re);
+            return false;
+        }
+    }
+
+
+    private void applyEntry(String user, Entry entry)
+    {
+        if (entry.isDeleted())
+        {
+            log.debug(entry.getPath() + " was deleted from the Dropbox of " + user + ". It is kept in Alfresco.");
+            return;
+        }
+
+        NodeRef nodeRef = dropboxService.getNodeRef(entry.getPath());
+
+        if (nodeRef != null)
+        {
+            // Folders change when their children do, and each child has its own entry
+            if (!entry.isDir() && isSynced(nodeRef, user))
+            {
+                updateNode(nodeRef, entry);
+            }
+        }
+        else
+        {
+            String path = entry.getDisplayPath();
+            int index = path.lastIndexOf('/');
+
+            NodeRef parentNodeRef = dropboxService.getNodeRef(path.substring(0, index));
+
+            if (parentNodeRef != null && nodeService.getType(parentNodeRef).equals(ContentModel.TYPE_FOLDER)
+                && isSynced(parentNodeRef, user))
+            {
+                addNode(parentNodeRef, entry, path.substring(index + 1));
+            }
+        }
+    }
+
+
+    private boolean isSynced(NodeRef nodeRef, String user)
+    {
+        return dropboxService.getSyncedUsers(nodeRef).containsKey(user);
+    }
+
+
+    private void updateNode(NodeRef nodeRef, Entry entry)
+    {
+        Serializable rev = dropboxService.getPersistedMetadata(nodeRef).get(DropboxConstants.Model.PROP_REV);
+
+        if (!entry.getRev().equals(rev))
+        {
+            log.debug("Updating " + entry.getDisplayPath() + " in Alfresco to rev " + entry.getRev());
+
+            Metadata metadata = dropboxService.getFile(nodeRef);
+            dropboxService.persistMetadata(metadata, nodeRef);
+        }
+    }
+
+
+    private void addNode(NodeRef parentNodeRef, Entry entry, String name)
+    {
+        log.debug("Adding " + entry.getDisplayPath() + " to Alfresco");
+
+        NodeRef nodeRef;
+        Metadata metadata;
+
+        if (entry.isDir())
+        {
+            nodeRef = fileFolderService.create(parentNodeRef, name, ContentModel.TYPE_FOLDER).getNodeRef();
+            metadata = dropboxService.getMetadata(nodeRef);
+        }
+        else
+        {
+            nodeRef = fileFolderService.create(parentNodeRef, name, ContentModel.TYPE_CONTENT).getNodeRef();
+            metadata = dropboxService.getFile(nodeRef);
+        }
+
+        dropboxService.persistMetadata(metadata, nodeRef);
+    }
+}
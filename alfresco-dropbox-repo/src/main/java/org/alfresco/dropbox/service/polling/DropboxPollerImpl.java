@@ -19,18 +19,26 @@ package org.alfresco.dropbox.service.polling;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 
 import org.alfresco.dropbox.DropboxConstants;
+import org.alfresco.dropbox.exceptions.DropboxClientException;
+import org.alfresco.dropbox.exceptions.DropboxUnavailableException;
 import org.alfresco.dropbox.exceptions.NotModifiedException;
 import org.alfresco.dropbox.service.DropboxService;
+import org.alfresco.dropbox.service.polling.PollLeases.Lease;
 import org.alfresco.model.ContentModel;
 import org.alfresco.repo.search.impl.lucene.LuceneQueryParserException;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
 import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
 import org.alfresco.service.cmr.model.FileFolderService;
+import org.alfresco.service.cmr.model.FileInfo;
 import org.alfresco.service.cmr.repository.ChildAssociationRef;
 import org.alfresco.service.cmr.repository.ContentIOException;
 import org.alfresco.service.cmr.repository.NodeRef;
@@ -38,6 +46,7 @@ import org.alfresco.service.cmr.repository.NodeService;
 import org.alfresco.service.cmr.repository.StoreRef;
 import org.alfresco.service.cmr.search.ResultSet;
 import org.alfresco.service.cmr.search.SearchService;
+import org.alfresco.service.namespace.QName;
 import org.alfresco.service.transaction.TransactionService;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -61,6 +70,8 @@ public class DropboxPollerImpl
     private FileFolderService    fileFolderService;
     private TransactionService   transactionService;
     private DropboxService       dropboxService;
+    private PollCoordinator      pollCoordinator;
+    private PollLeases           pollLeases;
 
     private static final String  CMIS_DROPBOX_SITES_QUERY     = "SELECT * FROM st:site AS S JOIN db:syncable AS O ON S.cmis:objectId = O.cmis:objectId";
     private static final String  CMIS_DROPBOX_DOCUMENTS_QUERY = "SELECT D.* FROM cmis:document AS D JOIN db:dropbox AS O ON D.cmis:objectId = O.cmis:objectId";
@@ -99,14 +110,217 @@ public class DropboxPollerImpl
     }
 
 
+    public void setPollCoordinator(PollCoordinator pollCoordinator)
+    {
+        this.pollCoordinator = pollCoordinator;
+    }
+
+
+    public void setPollLeases(PollLeases pollLeases)
+    {
+        this.pollLeases = pollLeases;
+    }
+
+
     public void execute()
     {
         log.debug("Dropbox poller initiated.");
 
-        // TODO where should the authentication and transactions go?
-        AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Object>()
+        Map<String, NodeRef> sites = AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Map<String, NodeRef>>()
+        {
+            public Map<String, NodeRef> doWork()
+                throws Exception
+            {
+                RetryingTransactionCallback<Map<String, NodeRef>> txnWork = new RetryingTransactionCallback<Map<String, NodeRef>>()
+                {
+                    public Map<String, NodeRef> execute()
+                        throws Exception
+                    {
+                        Map<String, NodeRef> sites = new LinkedHashMap<String, NodeRef>();
+
+                        for (NodeRef site : getSites())
+                        {
+                            sites.put((String)nodeService.getProperty(site, ContentModel.PROP_NAME), site);
+                        }
+
+                        return sites;
+                    }
+                };
+
+                return transactionService.getRetryingTransactionHelper().doInTransaction(txnWork, true);
+            }
+        }, AuthenticationUtil.getAdminUserName());
+
+        // In a different order on each server, so they start on different sites
+        List<Map.Entry<String, NodeRef>> order = new ArrayList<Map.Entry<String, NodeRef>>(sites.entrySet());
+        Collections.shuffle(order);
+
+        Map<String, Runnable> tasks = new LinkedHashMap<String, Runnable>();
+
+        for (Map.Entry<String, NodeRef> site : order)
+        {
+            final String siteName = site.getKey();
+            final NodeRef siteRef = site.getValue();
+
+            tasks.put(siteName, new Runnable()
+            {
+                public void run()
+                {
+                    pollSite(siteName, siteRef);
+                }
+            });
+        }
+
+        pollCoordinator.execute("sites", tasks);
+    }
+
+
+    /**
+     * Poll the synced folders and documents of the site, one pass for each user who synced any of them. Only done while this
+     * server holds the lease on the site, so it is not polled by two servers at once.
+     */
+    private void pollSite(String siteName, final NodeRef site)
+    {
+        Lease lease = pollLeases.acquire("site", siteName);
+
+        if (lease == null)
+        {
+            log.debug("Skipping " + siteName + ". It is being synced elsewhere.");
+            return;
+        }
+
+        try
+        {
+            Map<String, UserPass> passes = getUserPasses(site);
+
+            for (Map.Entry<String, UserPass> pass : passes.entrySet())
+            {
+                if (!lease.isHeld())
+                {
+                    log.warn("Stopped polling " + siteName + ". Its lease was lost.");
+                    break;
+                }
+
+                try
+                {
+                    poll(pass.getKey(), pass.getValue());
+                }
+                catch (DropboxUnavailableException due)
+                {
+                    throw due;
+                }
+                catch (RuntimeException re)
+                {
+                    log.error("Unable to poll " + site + " for " + pass.getKey() + ": " + re.getMessage(), re);
+                }
+            }
+        }
+        finally
+        {
+            pollLeases.release(lease);
+        }
+    }
+
+
+    /**
+     * Group the synced folders and documents of the site by the users who synced them. Each user only gets the folders and
+     * documents that are not inside another folder they synced, as polling a folder also polls everything in it.
+     */
+    private Map<String, UserPass> getUserPasses(final NodeRef site)
+    {
+        return AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Map<String, UserPass>>()
         {
+            public Map<String, UserPass> doWork()
+                throws Exception
+            {
+                RetryingTransactionCallback<Map<String, UserPass>> txnWork = new RetryingTransactionCallback<Map<String, UserPass>>()
+                {
+                    public Map<String, UserPass> execute()
+                        throws Exception
+                    {
+                        Map<String, UserPass> passes = new LinkedHashMap<String, UserPass>();
+
+                        for (NodeRef folder : getFolders(site))
+                        {
+                            for (String user : dropboxService.getSyncedUsers(folder).keySet())
+                            {
+                                getUserPass(passes, user).folders.add(folder);
+                            }
+                        }
+
+                        for (NodeRef document : getDocuments(site))
+                        {
+                            for (String user : dropboxService.getSyncedUsers(document).keySet())
+                            {
+                                getUserPass(passes, user).documents.add(document);
+                            }
+                        }
 
+                        for (UserPass pass : passes.values())
+                        {
+                            Set<NodeRef> synced = new HashSet<NodeRef>(pass.folders);
+
+                            removeInSyncedFolder(pass.folders, synced, site);
+                            removeInSyncedFolder(pass.documents, synced, site);
+                        }
+
+                        log.debug("Users with content synced from " + nodeService.getProperty(site, ContentModel.PROP_NAME) + ": "
+                                  + passes);
+
+                        return passes;
+                    }
+                };
+
+                return transactionService.getRetryingTransactionHelper().doInTransaction(txnWork, true, true);
+            }
+        }, AuthenticationUtil.getAdminUserName());
+    }
+
+
+    private UserPass getUserPass(Map<String, UserPass> passes, String user)
+    {
+        UserPass pass = passes.get(user);
+
+        if (pass == null)
+        {
+            pass = new UserPass();
+            passes.put(user, pass);
+        }
+
+        return pass;
+    }
+
+
+    private void removeInSyncedFolder(List<NodeRef> nodeRefs, Set<NodeRef> synced, NodeRef site)
+    {
+        Iterator<NodeRef> i = nodeRefs.iterator();
+
+        while (i.hasNext())
+        {
+            ChildAssociationRef parent = nodeService.getPrimaryParent(i.next());
+
+            while (parent != null && parent.getParentRef() != null && !parent.getParentRef().equals(site))
+            {
+                if (synced.contains(parent.getParentRef()))
+                {
+                    i.remove();
+                    break;
+                }
+
+                parent = nodeService.getPrimaryParent(parent.getParentRef());
+            }
+        }
+    }
+
+
+    /**
+     * Poll the users folders and documents as the user, so the users own Dropbox connection is used and their own metadata is
+     * updated. Done in a transaction of its own, so a failure for one user does not undo the others.
+     */
+    private void poll(final String user, final UserPass pass)
+    {
+        AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Object>()
+        {
             public Object doWork()
                 throws Exception
             {
@@ -115,101 +329,48 @@ public class DropboxPollerImpl
                     public Object execute()
                         throws Exception
                     {
-                        List<NodeRef> sites = getSites();
-
-                        List<NodeRef> folders = null;
-                        List<NodeRef> documents = null;
+                        for (NodeRef document : pass.documents)
+                        {
+                            updateNode(document);
+                        }
 
-                        if (sites != null)
+                        for (NodeRef folder : pass.folders)
                         {
-                            for (NodeRef site : sites)
+                            log.debug("Looking for updates/new content in " + nodeService.getProperty(folder, ContentModel.PROP_NAME));
+
+                            try
                             {
-                                if (!isSyncing(site))
+                                // Only walk the listing if it changed since the folder was last polled
+                                Metadata metadata = dropboxService.getMetadataIfChanged(folder);
+
+                                // Get the list of the content returned.
+                                List<Metadata> list = metadata.getContents();
+
+                                for (Metadata child : list)
                                 {
-                                    log.debug("Processing Content in " + nodeService.getProperty(site, ContentModel.PROP_NAME));
-                                    try
+                                    String name = child.getPath().replaceAll(Matcher.quoteReplacement(metadata.getPath() + "/"), "");
+
+                                    NodeRef childNodeRef = fileFolderService.searchSimple(folder, name);
+
+                                    if (childNodeRef == null)
                                     {
-                                        syncOn(site);
-
-                                        folders = getFolders(site);
-                                        documents = getDocuments(site);
-
-
-                                        if (documents != null)
-                                        {
-                                            // If the document is the child of a synced folder...we want to work on the folder as a
-                                            // full collection and not the document as an independent element
-                                            Iterator<NodeRef> i = documents.iterator();
-
-                                            while (i.hasNext())
-                                            {
-                                                NodeRef document = i.next();
-                                                if (folders.contains(nodeService.getPrimaryParent(document).getParentRef()))
-                                                {
-                                                    i.remove();
-                                                }
-                                            }
-                                            if (documents.size() > 0)
-                                            {
-                                                for (NodeRef document : documents)
-                                                {
-                                                    updateNode(document);
-                                                }
-                                            }
-                                        }
-
-                                        if (folders.size() > 0)
-                                        {
-                                            for (NodeRef folder : folders)
-                                            {
-                                                log.debug("Looking for updates/new content in "
-                                                          + nodeService.getProperty(folder, ContentModel.PROP_NAME));
-
-                                                try
-                                                {
-                                                    Metadata metadata = dropboxService.getMetadata(folder);
-
-                                                    // Get the list of the content returned.
-                                                    List<Metadata> list = metadata.getContents();
-
-                                                    for (Metadata child : list)
-                                                    {
-                                                        String name = child.getPath().replaceAll(Matcher.quoteReplacement(metadata.getPath()
-                                                                                                                          + "/"), "");
-
-                                                        NodeRef childNodeRef = fileFolderService.searchSimple(folder, name);
-
-                                                        if (childNodeRef == null)
-                                                        {
-                                                            addNode(folder, child, name);
-                                                        }
-                                                        else
-                                                        {
-                                                            updateNode(childNodeRef, child);
-                                                        }
-                                                    }
-
-                                                    metadata = dropboxService.getMetadata(folder);
-
-                                                    dropboxService.persistMetadata(metadata, folder);
-                                                }
-                                                catch (NotModifiedException nme)
-                                                {
-                                                    // TODO
-                                                }
-                                            }
-                                        }
+                                        addNode(folder, child, name);
                                     }
-                                    finally
+                                    else
                                     {
-                                        syncOff(site);
-                                        log.debug("End processing " + nodeService.getProperty(site, ContentModel.PROP_NAME));
-
-                                        documents = null;
-                                        folders = null;
+                                        updateNode(childNodeRef, child);
                                     }
                                 }
 
+                                metadata = dropboxService.getMetadata(folder);
+
+                                dropboxService.persistMetadata(metadata, folder);
+                            }
+                            catch (NotModifiedException nme)
+                            {
+                                log.debug(nodeService.getProperty(folder, ContentModel.PROP_NAME) + " has not changed");
+
+                                updateChildFolders(folder);
                             }
                         }
 
@@ -217,12 +378,13 @@ public class DropboxPollerImpl
                     }
                 };
 
-                transactionService.getRetryingTransactionHelper().doInTransaction(txnWork, false);
+                transactionService.getRetryingTransactionHelper().doInTransaction(txnWork, false, true);
+
+                log.debug("Polled " + pass + " for " + user);
 
                 return null;
             }
-        }, AuthenticationUtil.getAdminUserName());
-
+        }, user);
     }
 
 
@@ -360,6 +522,22 @@ public class DropboxPollerImpl
     }
 
 
+    /**
+     * The hash of a folder only covers what is directly in it, so the folders in an unchanged folder still have to be looked
+     * at for changes further down
+     */
+    private void updateChildFolders(NodeRef folder)
+    {
+        for (FileInfo child : fileFolderService.listFolders(folder))
+        {
+            if (nodeService.hasAspect(child.getNodeRef(), DropboxConstants.Model.ASPECT_DROPBOX))
+            {
+                updateNode(child.getNodeRef(), null);
+            }
+        }
+    }
+
+
     private void updateNode(final NodeRef nodeRef)
     {
         Metadata metadata = dropboxService.getMetadata(nodeRef);
@@ -368,6 +546,9 @@ public class DropboxPollerImpl
     }
 
 
+    /**
+     * Called as the user whose Dropbox the node is updated from
+     */
     private void updateNode(final NodeRef nodeRef, final Metadata metadata)
     {
         AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Object>()
@@ -386,7 +567,7 @@ public class DropboxPollerImpl
                         {
                             try
                             {
-                                Metadata metadata = dropboxService.getMetadata(nodeRef);
+                                Metadata metadata = dropboxService.getMetadataIfChanged(nodeRef);
 
                                 // Get the list of the content returned.
                                 List<Metadata> list = metadata.getContents();
@@ -413,13 +594,29 @@ public class DropboxPollerImpl
                             }
                             catch (NotModifiedException nme)
                             {
+                                log.debug(nodeService.getProperty(nodeRef, ContentModel.PROP_NAME) + " has not changed");
 
+                                updateChildFolders(nodeRef);
                             }
 
                         }
                         else
                         {
-                            Serializable rev = nodeService.getProperty(nodeRef, DropboxConstants.Model.PROP_REV);
+                            // The rev is persisted for each user, not on the node
+                            Serializable rev = null;
+                            try
+                            {
+                                Map<QName, Serializable> persisted = dropboxService.getPersistedMetadata(nodeRef);
+
+                                if (persisted != null)
+                                {
+                                    rev = persisted.get(DropboxConstants.Model.PROP_REV);
+                                }
+                            }
+                            catch (DropboxClientException dce)
+                            {
+                                // Not synced for this user yet
+                            }
 
                             if (!metadata.getRev().equals(rev))
                             {
@@ -455,10 +652,13 @@ public class DropboxPollerImpl
                 return null;
 
             }
-        }, AuthenticationUtil.getAdminUserName());
+        }, AuthenticationUtil.getRunAsUser());
     }
 
 
+    /**
+     * Called as the user whose Dropbox the node is added from
+     */
     private void addNode(final NodeRef parentNodeRef, final Metadata metadata, final String name)
     {
         AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Object>()
@@ -529,93 +729,23 @@ public class DropboxPollerImpl
                 return null;
 
             }
-        }, AuthenticationUtil.getAdminUserName());
+        }, AuthenticationUtil.getRunAsUser());
     }
 
 
-    private boolean isSyncing(final NodeRef nodeRef)
+    /**
+     * The folders and documents to poll for a user
+     */
+    private static class UserPass
     {
-        Boolean syncing = AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Boolean>()
-        {
-            public Boolean doWork()
-                throws Exception
-            {
-                RetryingTransactionCallback<Boolean> txnWork = new RetryingTransactionCallback<Boolean>()
-                {
-                    public Boolean execute()
-                        throws Exception
-                    {
-                        boolean syncing = false;
-
-                        if (nodeRef != null)
-                        {
-                            List<ChildAssociationRef> childAssoc = nodeService.getChildAssocs(nodeRef, DropboxConstants.Model.ASSOC_SYNC_DETAILS, DropboxConstants.Model.DROPBOX);
-
-                            if (childAssoc.size() == 1)
-                            {
-                                syncing = Boolean.valueOf(nodeService.getProperty(childAssoc.get(0).getChildRef(), DropboxConstants.Model.PROP_SYNCING).toString());
-                            }
-                        }
-
-                        return syncing;
-                    }
-                };
+        private final List<NodeRef> folders   = new ArrayList<NodeRef>();
+        private final List<NodeRef> documents = new ArrayList<NodeRef>();
 
-                boolean syncing = transactionService.getRetryingTransactionHelper().doInTransaction(txnWork, false);
-
-                return syncing;
-            }
-        }, AuthenticationUtil.getAdminUserName());
 
-        return syncing;
-    }
-
-
-    private void syncOn(NodeRef site)
-    {
-        sync(site, true);
-    }
-
-
-    private void syncOff(NodeRef site)
-    {
-        sync(site, false);
-    }
-
-
-    private void sync(final NodeRef site, final boolean sync)
-    {
-        AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Object>()
+        @Override
+        public String toString()
         {
-            public Object doWork()
-                throws Exception
-            {
-                RetryingTransactionCallback<Object> txnWork = new RetryingTransactionCallback<Object>()
-                {
-                    public Object execute()
-                        throws Exception
-                    {
-
-                        if (nodeService.hasAspect(site, DropboxConstants.Model.ASPECT_SYNCABLE))
-                        {
-                            List<ChildAssociationRef> childAssoc = nodeService.getChildAssocs(site, DropboxConstants.Model.ASSOC_SYNC_DETAILS, DropboxConstants.Model.DROPBOX);
-
-                            if (childAssoc.size() == 1)
-                            {
-                                nodeService.setProperty(childAssoc.get(0).getChildRef(), DropboxConstants.Model.PROP_SYNCING, sync);
-                            }
-                        }
-
-                        return null;
-                    }
-                };
-
-                transactionService.getRetryingTransactionHelper().doInTransaction(txnWork, false);
-
-                return null;
-            }
-        }, AuthenticationUtil.getAdminUserName());
+            return folders.size() + " folders and " + documents.size() + " documents";
+        }
     }
-
-
-}
+}
\ No newline at end of file
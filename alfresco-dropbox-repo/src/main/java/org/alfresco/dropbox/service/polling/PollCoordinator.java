@@ -0,0 +1,254 @@
+/*
+ * Copyright 2011-2012 Alfresco Software Limited.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.dropbox.service.polling;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * Runs the tasks of a poll, one for each site or user, on a bounded pool of threads, so one slow site or user does not hold
+ * up the others. Each task looks after its own authentication and transactions.
+ * <p>
+ * A run waits for its tasks until <code>deadline</code> milliseconds after it started. Tasks still running or waiting then
+ * are cancelled and left for the next run. How long each task of the last run of each kind took is kept along with the
+ * counts, and logged.
+ */
+public class PollCoordinator
+{
+    private static final Log                     logger    = LogFactory.getLog(PollCoordinator.class);
+
+    private ThreadPoolExecutor                   executor;
+
+    private long                                 deadline  = 600000L;
+
+    private final Map<String, Map<String, Long>> timings   = new ConcurrentHashMap<String, Map<String, Long>>();
+
+    private final AtomicLong                     runs      = new AtomicLong();
+    private final AtomicLong                     tasks     = new AtomicLong();
+    private final AtomicLong                     failures  = new AtomicLong();
+    private final AtomicLong                     timedOut  = new AtomicLong();
+    private final AtomicLong                     rejected  = new AtomicLong();
+
+
+    /**
+     * Pool the tasks are run on. Its size bounds how many sites or users are polled at once.
+     * 
+     * @param executor
+     */
+    public void setExecutor(ThreadPoolExecutor executor)
+    {
+        this.executor = executor;
+    }
+
+
+    /**
+     * Milliseconds a run waits for its tasks
+     * 
+     * @param deadline
+     */
+    public void setDeadline(long deadline)
+    {
+        this.deadline = deadline;
+    }
+
+
+    /**
+     * Run the tasks and wait for them until the deadline. A task that fails is logged and does not affect the others.
+     * 
+     * @param run the kind of run, such as sites or users
+     * @param tasks the tasks by the name of the site or user they are for
+     * @return milliseconds each finished task took, slowest first
+     */
+    public Map<String, Long> execute(String run, Map<String, Runnable> tasks)
+    {
+        long start = System.currentTimeMillis();
+
+        final Map<String, Long> taskTimes = new ConcurrentHashMap<String, Long>();
+        Map<String, Future<?>> futures = new LinkedHashMap<String, Future<?>>();
+
+        for (final Map.Entry<String, Runnable> task : tasks.entrySet())
+        {
+            try
+            {
+                futures.put(task.getKey(), executor.submit(new Runnable()
+                {
+                    public void run()
+                    {
+                        long taskStart = System.currentTimeMillis();
+
+                        try
+                        {
+                            task.getValue().run();
+                        }
+                        finally
+                        {
+                            taskTimes.put(task.getKey(), System.currentTimeMillis() - taskStart);
+                        }
+                    }
+                }));
+            }
+            catch (RejectedExecutionException ree)
+            {
+                rejected.incrementAndGet();
+                logger.warn("Dropbox: Poll of " + task.getKey() + " skipped. The poller pool is full.");
+            }
+        }
+
+        int cancelled = 0;
+
+        for (Map.Entry<String, Future<?>> future : futures.entrySet())
+        {
+            try
+            {
+                future.getValue().get(Math.max(0, start + deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            }
+            catch (ExecutionException ee)
+            {
+                failures.incrementAndGet();
+                logger.error("Dropbox: Poll of " + future.getKey() + " failed: " + ee.getCause().getMessage(), ee.getCause());
+            }
+            catch (TimeoutException te)
+            {
+                future.getValue().cancel(true);
+                cancelled++;
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+
+                for (Future<?> remaining : futures.values())
+                {
+                    remaining.cancel(true);
+                }
+
+                break;
+            }
+        }
+
+        Map<String, Long> breakdown = sortSlowestFirst(taskTimes);
+        long took = System.currentTimeMillis() - start;
+
+        runs.incrementAndGet();
+        this.tasks.addAndGet(futures.size());
+        timedOut.addAndGet(cancelled);
+        timings.put(run, breakdown);
+
+        if (cancelled > 0)
+        {
+            logger.warn("Dropbox: Poll of " + run + " passed its deadline of " + deadline + "ms. " + cancelled + " of "
+                        + tasks.size() + " left for the next run. Finished: " + breakdown);
+        }
+        else if (logger.isDebugEnabled())
+        {
+            logger.debug("Dropbox: Poll of " + tasks.size() + " " + run + " took " + took + "ms: " + breakdown);
+        }
+
+        return breakdown;
+    }
+
+
+    private Map<String, Long> sortSlowestFirst(Map<String, Long> taskTimes)
+    {
+        List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(taskTimes.entrySet());
+
+        Collections.sort(entries, new Comparator<Map.Entry<String, Long>>()
+        {
+            public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b)
+            {
+                return b.getValue().compareTo(a.getValue());
+            }
+        });
+
+        Map<String, Long> sorted = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, Long> entry : entries)
+        {
+            sorted.put(entry.getKey(), entry.getValue());
+        }
+
+        return Collections.unmodifiableMap(sorted);
+    }
+
+
+    /**
+     * @param run the kind of run
+     * @return milliseconds each task of the last run took, slowest first, or an empty map if there has been no run
+     */
+    public Map<String, Long> getLastTimings(String run)
+    {
+        Map<String, Long> breakdown = timings.get(run);
+
+        return breakdown != null ? breakdown : Collections.<String, Long> emptyMap();
+    }
+
+
+    public long getRuns()
+    {
+        return runs.get();
+    }
+
+
+    public long getTasks()
+    {
+        return tasks.get();
+    }
+
+
+    public long getFailures()
+    {
+        return failures.get();
+    }
+
+
+    /**
+     * @return number of tasks cancelled at the deadline of their run
+     */
+    public long getTimedOut()
+    {
+        return timedOut.get();
+    }
+
+
+    /**
+     * @return number of tasks not run because the pool was full
+     */
+    public long getRejected()
+    {
+        return rejected.get();
+    }
+
+
+    public int getActiveCount()
+    {
+        return executor.getActiveCount();
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2011-2012 Alfresco Software Limited.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.dropbox.service.polling;
+
+
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.dropbox.DropboxConstants;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.TraceableThreadFactory;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * Cluster wide leases on the sites and users being polled, held with the {@link JobLockService}. A site or user is only
+ * polled by the server that holds its lease, so the servers of a cluster share the polling between them: each takes a lease
+ * when one of its poller threads is free to do the work, and a busy server leaves the rest to the others.
+ * <p>
+ * Leases are refreshed in the background while they are held and expire <code>leaseTtl</code> milliseconds after the last
+ * refresh, so the work of a server that stops is picked up by another one on its next run. A lease that could not be
+ * refreshed is marked lost, and the work holding it should stop.
+ */
+public class PollLeases
+{
+    private static final Log         log          = LogFactory.getLog(PollLeases.class);
+
+    private static final Charset     UTF_8        = Charset.forName("UTF-8");
+    private static final char[]      HEX          = "0123456789abcdef".toCharArray();
+
+    private JobLockService           jobLockService;
+
+    private long                     leaseTtl     = 60000L;
+
+    private ScheduledExecutorService refresher;
+
+    private final Set<Lease>         held         = Collections.newSetFromMap(new ConcurrentHashMap<Lease, Boolean>());
+
+    private final AtomicLong         acquired     = new AtomicLong();
+    private final AtomicLong         contended    = new AtomicLong();
+    private final AtomicLong         lost         = new AtomicLong();
+
+
+    public void setJobLockService(JobLockService jobLockService)
+    {
+        this.jobLockService = jobLockService;
+    }
+
+
+    /**
+     * Milliseconds a lease lasts without being refreshed
+     * 
+     * @param leaseTtl
+     */
+    public void setLeaseTtl(long leaseTtl)
+    {
+        this.leaseTtl = leaseTtl;
+    }
+
+
+    public void init()
+    {
+        TraceableThreadFactory threadFactory = new TraceableThreadFactory();
+        threadFactory.setThreadDaemon(true);
+        threadFactory.setNamePrefix("DropboxPollLeases");
+
+        // Refreshed well before they expire, so a slow refresh does not lose them
+        long refreshInterval = leaseTtl / 3;
+
+        refresher = new ScheduledThreadPoolExecutor(1, threadFactory);
+        refresher.scheduleWithFixedDelay(new Runnable()
+        {
+            public void run()
+            {
+                refresh();
+            }
+        }, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+    }
+
+
+    public void destroy()
+    {
+        if (refresher != null)
+        {
+            refresher.shutdownNow();
+        }
+
+        for (Lease lease : held)
+        {
+            release(lease);
+        }
+    }
+
+
+    /**
+     * Take the lease on a site or user
+     * 
+     * @param kind what is leased, such as site or user
+     * @param name the name of the site or user
+     * @return the lease, or null if another server or thread holds it
+     */
+    public Lease acquire(String kind, String name)
+    {
+        // The job lock service splits lock names on '.', so a name with one in it would share a lock with other names
+        QName lockQName = QName.createQName(DropboxConstants.Model.ORG_DROPBOX_MODEL_1_0_URI, "poll." + kind + "." + toHex(name));
+
+        try
+        {
+            Lease lease = new Lease(lockQName, kind + " " + name, jobLockService.getLock(lockQName, leaseTtl));
+            held.add(lease);
+
+            acquired.incrementAndGet();
+
+            return lease;
+        }
+        catch (LockAcquisitionException lae)
+        {
+            contended.incrementAndGet();
+            log.debug("Dropbox: Lease on " + kind + " " + name + " is held elsewhere.");
+
+            return null;
+        }
+    }
+
+
+    /**
+     * Give the lease up, so the site or user can be taken by any server
+     * 
+     * @param lease
+     */
+    public void release(Lease lease)
+    {
+        if (held.remove(lease))
+        {
+            try
+            {
+                jobLockService.releaseLock(lease.token, lease.lockQName);
+            }
+            catch (RuntimeException re)
+            {
+                // It expires on its own
+                log.debug("Dropbox: Unable to release the lease on " + lease.description + ": " + re.getMessage());
+            }
+        }
+    }
+
+
+    private void refresh()
+    {
+        for (Lease lease : held)
+        {
+            try
+            {
+                jobLockService.refreshLock(lease.token, lease.lockQName, leaseTtl);
+            }
+            catch (LockAcquisitionException lae)
+            {
+                lease.lost = true;
+                held.remove(lease);
+
+                lost.incrementAndGet();
+                log.warn("Dropbox: Lease on " + lease.description + " was lost. Its work stops.");
+            }
+            catch (RuntimeException re)
+            {
+                // Tried again with the next refresh, before the lease expires
+                log.warn("Dropbox: Unable to refresh the lease on " + lease.description + ": " + re.getMessage());
+            }
+        }
+    }
+
+
+    private String toHex(String name)
+    {
+        byte[] bytes = name.getBytes(UTF_8);
+        char[] chars = new char[bytes.length * 2];
+
+        for (int i = 0; i < bytes.length; i++)
+        {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+
+        return new String(chars);
+    }
+
+
+    /**
+     * @return number of leases held by this server
+     */
+    public int getHeld()
+    {
+        return held.size();
+    }
+
+
+    public long getAcquired()
+    {
+        return acquired.get();
+    }
+
+
+    /**
+     * @return number of leases not taken because they were held elsewhere
+     */
+    public long getContended()
+    {
+        return contended.get();
+    }
+
+
+    /**
+     * @return number of leases that expired or were taken by another server while held
+     */
+    public long getLost()
+    {
+        return lost.get();
+    }
+
+
+    /**
+     * A lease held by this server
+     */
+    public static class Lease
+    {
+        private final QName      lockQName;
+        private final String     description;
+        private final String     token;
+        private volatile boolean lost;
+
+
+        private Lease(QName lockQName, String description, String token)
+        {
+            this.lockQName = lockQName;
+            this.description = description;
+            this.token = token;
+        }
+
+
+        /**
+         * @return false once the lease has been lost, after which the work holding it should stop
+         */
+        public boolean isHeld()
+        {
+            return !lost;
+        }
+    }
+}
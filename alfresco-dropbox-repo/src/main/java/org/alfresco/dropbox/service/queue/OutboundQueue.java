@@ -0,0 +1,989 @@
+/*
+ * Copyright 2011-2012 Alfresco Software Limited.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.dropbox.service.queue;
+
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.dropbox.DropboxConstants;
+import org.alfresco.dropbox.exceptions.DropboxUnavailableException;
+import org.alfresco.dropbox.exceptions.FanOutException;
+import org.alfresco.dropbox.exceptions.RateLimitException;
+import org.alfresco.dropbox.service.action.DropboxDeleteAction;
+import org.alfresco.dropbox.service.action.DropboxMoveAction;
+import org.alfresco.dropbox.service.action.DropboxUpdateAction;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.action.ActionService;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.attributes.AttributeService.AttributeQueryCallback;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.GUID;
+import org.alfresco.util.TraceableThreadFactory;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.extensions.surf.util.AbstractLifecycleBean;
+
+
+/**
+ * Persistent queue of the changes waiting to be sent to Dropbox.
+ * <p>
+ * Changes are written to the queue, in the AttributeService, in the same transaction as the change to the node, so they are
+ * neither lost on a restart nor sent if the transaction rolls back. There is one entry per node and operation: a change to a
+ * node that is already queued replaces the queued change, so a node that keeps changing is sent once it has been left alone
+ * for <code>quietPeriod</code> milliseconds.
+ * <p>
+ * The queue is drained every <code>drainInterval</code> milliseconds, by one server of a cluster at a time, in batches of
+ * <code>batchSize</code>. An entry is only removed once its action has succeeded, so every change is sent at least once. A
+ * failed entry is retried with an increasing delay and after <code>maxAttempts</code> is moved aside to the failed entries. An
+ * update or move that failed for some of the synced users only is retried for those users.
+ * <p>
+ * The actions are run on a pool of their own, so a large sync does not hold up the other asynchronous work of the server. A
+ * batch takes the due entries of each user in turn, so a user with thousands of changes waiting cannot hold up the changes
+ * of everyone else. An entry the pool rejects stays in the queue for the next drain.
+ * <p>
+ * An entry stopped by the Dropbox rate limit, or by the circuit breaker while Dropbox is failing, is not counted as a failed
+ * attempt. It is put off, and the draining of the queue paused, until Dropbox accepts requests again.
+ */
+public class OutboundQueue
+    extends AbstractLifecycleBean
+{
+    private static final Log      log                   = LogFactory.getLog(OutboundQueue.class);
+
+    public static final String    UPDATE                = "update";
+    public static final String    DELETE                = "delete";
+    public static final String    MOVE                  = "move";
+
+    private static final String   QUEUE_ATTRIBUTE       = "org.alfresco.dropbox.outbound";
+    private static final String   FAILED_ATTRIBUTE      = "org.alfresco.dropbox.outbound.failed";
+
+    private static final QName    LOCK_QNAME            = QName.createQName(DropboxConstants.Model.ORG_DROPBOX_MODEL_1_0_URI, "outboundQueue");
+
+    private static final String   DROPBOX_UPDATE_ACTION = "dropboxUpdateAction";
+    private static final String   DROPBOX_DELETE_ACTION = "dropboxDeleteAction";
+    private static final String   DROPBOX_MOVE_ACTION   = "dropboxMoveAction";
+
+    private static final String   OPERATION             = "operation";
+    private static final String   NODE_REF              = "nodeRef";
+    private static final String   USER                  = "user";
+    private static final String   PARAMS                = "params";
+    private static final String   ENQUEUED              = "enqueued";
+    private static final String   NOT_BEFORE            = "notBefore";
+    private static final String   ATTEMPTS              = "attempts";
+    private static final String   VERSION               = "version";
+
+    private AttributeService      attributeService;
+    private TransactionService    transactionService;
+    private ActionService         actionService;
+    private NodeService           nodeService;
+    private JobLockService        jobLockService;
+
+    private long                  quietPeriod           = 5000L;
+    private long                  drainInterval         = 2000L;
+    private int                   batchSize             = 50;
+    private int                   scanLimit             = 500;
+    private int                   maxAttempts           = 10;
+    private long                  retryDelay            = 30000L;
+    private long                  maxRetryDelay         = 3600000L;
+    private long                  lockTtl               = 60000L;
+
+    private ThreadPoolExecutor    executor;
+    private ScheduledExecutorService scheduler;
+    private volatile long         pausedUntil;
+
+    private final AtomicLong      enqueued              = new AtomicLong();
+    private final AtomicLong      collapsed             = new AtomicLong();
+    private final AtomicLong      completed             = new AtomicLong();
+    private final AtomicLong      retried               = new AtomicLong();
+    private final AtomicLong      failed                = new AtomicLong();
+    private final AtomicLong      deferred              = new AtomicLong();
+    private final AtomicLong      rateLimited           = new AtomicLong();
+
+
+    public void setAttributeService(AttributeService attributeService)
+    {
+        this.attributeService = attributeService;
+    }
+
+
+    public void setTransactionService(TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+
+    public void setActionService(ActionService actionService)
+    {
+        this.actionService = actionService;
+    }
+
+
+    public void setNodeService(NodeService nodeService)
+    {
+        this.nodeService = nodeService;
+    }
+
+
+    public void setJobLockService(JobLockService jobLockService)
+    {
+        this.jobLockService = jobLockService;
+    }
+
+
+    /**
+     * The pool the actions are run on
+     *
+     * @param executor
+     */
+    public void setExecutor(ThreadPoolExecutor executor)
+    {
+        this.executor = executor;
+    }
+
+
+    /**
+     * Milliseconds a node must be left alone before a change to it is sent
+     *
+     * @param quietPeriod
+     */
+    public void setQuietPeriod(long quietPeriod)
+    {
+        this.quietPeriod = quietPeriod;
+    }
+
+
+    public void setDrainInterval(long drainInterval)
+    {
+        this.drainInterval = drainInterval;
+    }
+
+
+    public void setBatchSize(int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
+
+    /**
+     * Most due entries looked at for each batch. The queue is read oldest first, and at most batchSize entries of each user
+     * are kept, so the entries of at least scanLimit / batchSize users are looked at.
+     *
+     * @param scanLimit
+     */
+    public void setScanLimit(int scanLimit)
+    {
+        this.scanLimit = scanLimit;
+    }
+
+
+    public void setMaxAttempts(int maxAttempts)
+    {
+        this.maxAttempts = maxAttempts;
+    }
+
+
+    public void setRetryDelay(long retryDelay)
+    {
+        this.retryDelay = retryDelay;
+    }
+
+
+    public void setMaxRetryDelay(long maxRetryDelay)
+    {
+        this.maxRetryDelay = maxRetryDelay;
+    }
+
+
+    public void setLockTtl(long lockTtl)
+    {
+        this.lockTtl = lockTtl;
+    }
+
+
+    /**
+     * Queue an update of the node in Dropbox
+     *
+     * @param nodeRef
+     * @param useParent send the node to the users the parent is synced to, as for a new node
+     */
+    public void update(NodeRef nodeRef, boolean useParent)
+    {
+        HashMap<String, Serializable> params = new HashMap<String, Serializable>();
+        params.put(DropboxUpdateAction.DROPBOX_USE_PARENT, useParent);
+
+        enqueue(UPDATE, nodeRef, UPDATE + "|" + nodeRef, params, quietPeriod);
+    }
+
+
+    /**
+     * Queue the delete of path from the users Dropbox accounts. Any update of the node still waiting is dropped.
+     *
+     * @param nodeRef
+     * @param path
+     * @param users
+     */
+    public void delete(NodeRef nodeRef, String path, ArrayList<String> users)
+    {
+        attributeService.removeAttribute(QUEUE_ATTRIBUTE, UPDATE + "|" + nodeRef);
+
+        HashMap<String, Serializable> params = new HashMap<String, Serializable>();
+        params.put(DropboxDeleteAction.DROPBOX_PATH, path);
+        params.put(DropboxDeleteAction.DROPBOX_USERS, users);
+
+        enqueue(DELETE, nodeRef, DELETE + "|" + path, params, 0);
+    }
+
+
+    /**
+     * Queue the move of a node
+     *
+     * @param oldChildAssocRef
+     * @param newChildAssocRef
+     */
+    public void move(ChildAssociationRef oldChildAssocRef, ChildAssociationRef newChildAssocRef)
+    {
+        HashMap<String, Serializable> params = new HashMap<String, Serializable>();
+        params.put(DropboxMoveAction.DROPBOX_FROM_PATH, oldChildAssocRef);
+        params.put(DropboxMoveAction.DROPBOX_TO_PATH, newChildAssocRef);
+
+        enqueue(MOVE, newChildAssocRef.getChildRef(), MOVE + "|" + newChildAssocRef.getChildRef(), params, 0);
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private void enqueue(String operation, NodeRef nodeRef, String key, HashMap<String, Serializable> params, long delay)
+    {
+        long now = System.currentTimeMillis();
+
+        HashMap<String, Serializable> entry = new HashMap<String, Serializable>();
+        entry.put(OPERATION, operation);
+        entry.put(NODE_REF, nodeRef);
+        entry.put(USER, AuthenticationUtil.getRunAsUser());
+        entry.put(ENQUEUED, now);
+        entry.put(NOT_BEFORE, now + delay);
+        entry.put(ATTEMPTS, 0);
+        entry.put(VERSION, GUID.generate());
+
+        Map<String, Serializable> existing = (Map<String, Serializable>)attributeService.getAttribute(QUEUE_ATTRIBUTE, key);
+        if (existing != null)
+        {
+            merge(operation, (Map<String, Serializable>)existing.get(PARAMS), params);
+
+            // The change has been waiting since the first one
+            entry.put(ENQUEUED, existing.get(ENQUEUED));
+
+            collapsed.incrementAndGet();
+        }
+
+        entry.put(PARAMS, params);
+
+        attributeService.setAttribute(entry, QUEUE_ATTRIBUTE, key);
+        enqueued.incrementAndGet();
+
+        log.debug("Dropbox: Queued " + key + (existing != null ? ", replacing the queued change" : ""));
+    }
+
+
+    /**
+     * Fold the params of a change that is already queued into those of a new change to the same node
+     */
+    private void merge(String operation, Map<String, Serializable> existing, HashMap<String, Serializable> params)
+    {
+        if (UPDATE.equals(operation))
+        {
+            // A new node that has not been sent yet still has to go to the users of its parent
+            if (Boolean.TRUE.equals(existing.get(DropboxUpdateAction.DROPBOX_USE_PARENT)))
+            {
+                params.put(DropboxUpdateAction.DROPBOX_USE_PARENT, true);
+            }
+        }
+        else if (MOVE.equals(operation))
+        {
+            // The file is still where it was before the first move
+            params.put(DropboxMoveAction.DROPBOX_FROM_PATH, existing.get(DropboxMoveAction.DROPBOX_FROM_PATH));
+        }
+    }
+
+
+    @Override
+    protected void onBootstrap(ApplicationEvent event)
+    {
+        TraceableThreadFactory threadFactory = new TraceableThreadFactory();
+        threadFactory.setThreadDaemon(true);
+        threadFactory.setNamePrefix("DropboxOutboundQueue");
+
+        scheduler = new ScheduledThreadPoolExecutor(1, threadFactory);
+        scheduler.scheduleWithFixedDelay(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    drain();
+                }
+                catch (Throwable t)
+                {
+                    log.error("Dropbox: Unable to drain the outbound queue: " + t.getMessage(), t);
+                }
+            }
+        }, drainInterval, drainInterval, TimeUnit.MILLISECONDS);
+    }
+
+
+    @Override
+    protected void onShutdown(ApplicationEvent event)
+    {
+        if (scheduler != null)
+        {
+            scheduler.shutdownNow();
+        }
+    }
+
+
+    /**
+     * Send a batch of the changes that are due
+     */
+    public void drain()
+    {
+        if (System.currentTimeMillis() < pausedUntil)
+        {
+            // Dropbox is rate limiting us or is unavailable
+            return;
+        }
+
+        String lockToken;
+        try
+        {
+            lockToken = jobLockService.getLock(LOCK_QNAME, lockTtl);
+        }
+        catch (LockAcquisitionException lae)
+        {
+            // Another server is draining the queue
+            return;
+        }
+
+        try
+        {
+            List<Future<?>> running = new ArrayList<Future<?>>();
+
+            for (final Entry entry : getDueEntries())
+            {
+                try
+                {
+                    running.add(executor.submit(new Runnable()
+                    {
+                        public void run()
+                        {
+                            process(entry);
+                        }
+                    }));
+                }
+                catch (RejectedExecutionException ree)
+                {
+                    // The pool is saturated; the entry is still in the queue
+                    deferred.incrementAndGet();
+                    log.debug("Dropbox: Sync pool saturated, " + entry.key + " deferred");
+                }
+            }
+
+            // Hold the lock until the batch is done, so another server does not send the same entries
+            for (Future<?> future : running)
+            {
+                waitFor(future, lockToken);
+            }
+        }
+        finally
+        {
+            jobLockService.releaseLock(lockToken, LOCK_QNAME);
+        }
+    }
+
+
+    private void waitFor(Future<?> future, String lockToken)
+    {
+        while (true)
+        {
+            try
+            {
+                future.get(lockTtl / 2, TimeUnit.MILLISECONDS);
+                return;
+            }
+            catch (TimeoutException te)
+            {
+                jobLockService.refreshLock(lockToken, LOCK_QNAME, lockTtl);
+            }
+            catch (ExecutionException ee)
+            {
+                // process handles its own failures
+                log.error("Dropbox: Unexpected failure in the outbound queue: " + ee.getCause().getMessage(), ee.getCause());
+                return;
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+
+    private void process(final Entry entry)
+    {
+        long start = System.currentTimeMillis();
+
+        try
+        {
+            AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Object>()
+            {
+                public Object doWork()
+                    throws Exception
+                {
+                    RetryingTransactionCallback<Object> txnWork = new RetryingTransactionCallback<Object>()
+                    {
+                        public Object execute()
+                            throws Throwable
+                        {
+                            execute(entry);
+
+                            return null;
+                        }
+                    };
+
+                    return transactionService.getRetryingTransactionHelper().doInTransaction(txnWork, false, true);
+                }
+            }, entry.user != null ? entry.user : AuthenticationUtil.getSystemUserName());
+
+            complete(entry);
+            completed.incrementAndGet();
+
+            log.debug("Dropbox: Sent " + entry.key + " in " + (System.currentTimeMillis() - start) + "ms, "
+                      + (start - entry.enqueued) + "ms after it was queued");
+        }
+        catch (Throwable t)
+        {
+            long retryAfter = getRetryAfter(t);
+
+            if (retryAfter >= 0)
+            {
+                putOff(entry, retryAfter, t);
+            }
+            else
+            {
+                fail(entry, t);
+            }
+        }
+    }
+
+
+    /**
+     * @return milliseconds to wait if Dropbox is rate limiting us or unavailable, otherwise -1
+     */
+    private long getRetryAfter(Throwable t)
+    {
+        for (; t != null; t = t.getCause())
+        {
+            if (t instanceof RateLimitException)
+            {
+                long retryAfter = ((RateLimitException)t).getRetryAfter();
+
+                return retryAfter > 0 ? retryAfter : retryDelay;
+            }
+            if (t instanceof DropboxUnavailableException)
+            {
+                return ((DropboxUnavailableException)t).getRetryAfter();
+            }
+        }
+
+        return -1;
+    }
+
+
+    /**
+     * Put the entry off until Dropbox accepts requests again, without counting it as an attempt
+     */
+    @SuppressWarnings("unchecked")
+    private void putOff(final Entry entry, long retryAfter, Throwable t)
+    {
+        final long until = System.currentTimeMillis() + retryAfter;
+
+        if (until > pausedUntil)
+        {
+            pausedUntil = until;
+        }
+
+        runInTransaction(new RetryingTransactionCallback<Object>()
+        {
+            public Object execute()
+                throws Throwable
+            {
+                Map<String, Serializable> current = (Map<String, Serializable>)attributeService.getAttribute(QUEUE_ATTRIBUTE, entry.key);
+
+                if (current != null && entry.version.equals(current.get(VERSION)))
+                {
+                    HashMap<String, Serializable> updated = new HashMap<String, Serializable>(current);
+                    updated.put(NOT_BEFORE, until);
+                    retryFailedUsersOnly(updated, t);
+
+                    attributeService.setAttribute(updated, QUEUE_ATTRIBUTE, entry.key);
+                }
+
+                return null;
+            }
+        }, false);
+
+        rateLimited.incrementAndGet();
+
+        log.info("Dropbox: " + t.getMessage() + " " + entry.key + " put off for " + retryAfter + "ms");
+    }
+
+
+    /**
+     * If the entry failed for some of the users only, keep it for just those users so the others are not sent it again
+     */
+    @SuppressWarnings("unchecked")
+    private void retryFailedUsersOnly(HashMap<String, Serializable> entry, Throwable t)
+    {
+        for (; t != null; t = t.getCause())
+        {
+            if (t instanceof FanOutException)
+            {
+                HashMap<String, Serializable> params = new HashMap<String, Serializable>((Map<String, Serializable>)entry.get(PARAMS));
+
+                if (UPDATE.equals(entry.get(OPERATION)))
+                {
+                    params.put(DropboxUpdateAction.DROPBOX_USERS, new ArrayList<String>(((FanOutException)t).getFailedUsers()));
+                }
+                else if (MOVE.equals(entry.get(OPERATION)))
+                {
+                    params.put(DropboxMoveAction.DROPBOX_USERS, new ArrayList<String>(((FanOutException)t).getFailedUsers()));
+                }
+
+                entry.put(PARAMS, params);
+
+                return;
+            }
+        }
+    }
+
+
+    private void execute(Entry entry)
+    {
+        if (UPDATE.equals(entry.operation))
+        {
+            if (nodeService.exists(entry.nodeRef))
+            {
+                actionService.executeAction(actionService.createAction(DROPBOX_UPDATE_ACTION, entry.params), entry.nodeRef, false, false);
+            }
+        }
+        else if (DELETE.equals(entry.operation))
+        {
+            actionService.executeAction(actionService.createAction(DROPBOX_DELETE_ACTION, entry.params), entry.nodeRef, false, false);
+        }
+        else if (MOVE.equals(entry.operation))
+        {
+            actionService.executeAction(actionService.createAction(DROPBOX_MOVE_ACTION, entry.params), null, false, false);
+        }
+    }
+
+
+    /**
+     * Remove the entry, unless it has been replaced by a newer change while it was being sent
+     */
+    @SuppressWarnings("unchecked")
+    private void complete(final Entry entry)
+    {
+        runInTransaction(new RetryingTransactionCallback<Object>()
+        {
+            public Object execute()
+                throws Throwable
+            {
+                Map<String, Serializable> current = (Map<String, Serializable>)attributeService.getAttribute(QUEUE_ATTRIBUTE, entry.key);
+
+                if (current != null && entry.version.equals(current.get(VERSION)))
+                {
+                    attributeService.removeAttribute(QUEUE_ATTRIBUTE, entry.key);
+                }
+
+                return null;
+            }
+        }, false);
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private void fail(final Entry entry, final Throwable t)
+    {
+        final int attempts = entry.attempts + 1;
+
+        runInTransaction(new RetryingTransactionCallback<Object>()
+        {
+            public Object execute()
+                throws Throwable
+            {
+                Map<String, Serializable> current = (Map<String, Serializable>)attributeService.getAttribute(QUEUE_ATTRIBUTE, entry.key);
+
+                if (current == null || !entry.version.equals(current.get(VERSION)))
+                {
+                    // Replaced by a newer change, which will be sent instead
+                    return null;
+                }
+
+                HashMap<String, Serializable> updated = new HashMap<String, Serializable>(current);
+                updated.put(ATTEMPTS, attempts);
+                retryFailedUsersOnly(updated, t);
+
+                if (attempts >= maxAttempts)
+                {
+                    attributeService.removeAttribute(QUEUE_ATTRIBUTE, entry.key);
+                    attributeService.setAttribute(updated, FAILED_ATTRIBUTE, entry.key);
+                }
+                else
+                {
+                    long delay = Math.min(maxRetryDelay, retryDelay * (1L << Math.min(attempts - 1, 20)));
+                    updated.put(NOT_BEFORE, System.currentTimeMillis() + delay);
+
+                    attributeService.setAttribute(updated, QUEUE_ATTRIBUTE, entry.key);
+                }
+
+                return null;
+            }
+        }, false);
+
+        if (attempts >= maxAttempts)
+        {
+            failed.incrementAndGet();
+            log.error("Dropbox: Giving up on " + entry.key + " after " + attempts + " attempts: " + t.getMessage(), t);
+        }
+        else
+        {
+            retried.incrementAndGet();
+            log.warn("Dropbox: Unable to send " + entry.key + ", attempt " + attempts + ": " + t.getMessage());
+        }
+    }
+
+
+    /**
+     * The oldest entries that are due, at most batchSize of them. Entries are read in the order they were first queued, and
+     * reading stops once scanLimit due entries have been found, so a long queue is not read in full every drain.
+     */
+    private List<Entry> getDueEntries()
+    {
+        final long now = System.currentTimeMillis();
+        final List<Entry> due = new ArrayList<Entry>();
+        final Map<String, Integer> perUser = new HashMap<String, Integer>();
+
+        runInTransaction(new RetryingTransactionCallback<Object>()
+        {
+            public Object execute()
+                throws Throwable
+            {
+                attributeService.getAttributes(new AttributeQueryCallback()
+                {
+                    @SuppressWarnings("unchecked")
+                    public boolean handleAttribute(Long id, Serializable value, Serializable[] keys)
+                    {
+                        Map<String, Serializable> entry = (Map<String, Serializable>)value;
+
+                        if ((Long)entry.get(NOT_BEFORE) <= now)
+                        {
+                            String user = (String)entry.get(USER);
+                            Integer count = perUser.get(user);
+
+                            // No more than one batch of a user can be taken
+                            if (count == null || count < batchSize)
+                            {
+                                due.add(new Entry((String)keys[1], entry));
+                                perUser.put(user, count == null ? 1 : count + 1);
+                            }
+                        }
+
+                        return due.size() < scanLimit;
+                    }
+                }, QUEUE_ATTRIBUTE);
+
+                return null;
+            }
+        }, true);
+
+        Collections.sort(due, new Comparator<Entry>()
+        {
+            public int compare(Entry e1, Entry e2)
+            {
+                return e1.enqueued < e2.enqueued ? -1 : (e1.enqueued == e2.enqueued ? 0 : 1);
+            }
+        });
+
+        return takeFairly(due);
+    }
+
+
+    /**
+     * Take up to batchSize entries, one from each user in turn, oldest first. Only one entry of a node is taken, so the
+     * changes to a node are not sent at the same time.
+     */
+    private List<Entry> takeFairly(List<Entry> due)
+    {
+        Map<String, LinkedList<Entry>> byUser = new LinkedHashMap<String, LinkedList<Entry>>();
+        for (Entry entry : due)
+        {
+            LinkedList<Entry> entries = byUser.get(entry.user);
+            if (entries == null)
+            {
+                entries = new LinkedList<Entry>();
+                byUser.put(entry.user, entries);
+            }
+            entries.add(entry);
+        }
+
+        List<Entry> batch = new ArrayList<Entry>();
+        Set<NodeRef> nodes = new HashSet<NodeRef>();
+
+        while (batch.size() < batchSize && !byUser.isEmpty())
+        {
+            Iterator<LinkedList<Entry>> users = byUser.values().iterator();
+            while (users.hasNext() && batch.size() < batchSize)
+            {
+                LinkedList<Entry> entries = users.next();
+                Entry entry = entries.removeFirst();
+
+                if (entry.nodeRef == null || nodes.add(entry.nodeRef))
+                {
+                    batch.add(entry);
+                }
+
+                if (entries.isEmpty())
+                {
+                    users.remove();
+                }
+            }
+        }
+
+        return batch;
+    }
+
+
+    private <R> R runInTransaction(final RetryingTransactionCallback<R> txnWork, final boolean readOnly)
+    {
+        return AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<R>()
+        {
+            public R doWork()
+                throws Exception
+            {
+                return transactionService.getRetryingTransactionHelper().doInTransaction(txnWork, readOnly, true);
+            }
+        }, AuthenticationUtil.getSystemUserName());
+    }
+
+
+    /**
+     * Number of changes waiting to be sent
+     *
+     * @return
+     */
+    public int getDepth()
+    {
+        return count(QUEUE_ATTRIBUTE)[0];
+    }
+
+
+    /**
+     * How long the oldest change has been waiting to be sent, in milliseconds
+     *
+     * @return
+     */
+    public long getOldestAge()
+    {
+        long oldest = count(QUEUE_ATTRIBUTE)[1];
+
+        return oldest > 0 ? System.currentTimeMillis() - oldest : 0;
+    }
+
+
+    /**
+     * Number of changes that were given up on
+     *
+     * @return
+     */
+    public int getFailedDepth()
+    {
+        return count(FAILED_ATTRIBUTE)[0];
+    }
+
+
+    /**
+     * @return the number of entries and the time the oldest was queued
+     */
+    private int[] count(final String attribute)
+    {
+        final long[] counts = new long[] { 0, 0 };
+
+        runInTransaction(new RetryingTransactionCallback<Object>()
+        {
+            public Object execute()
+                throws Throwable
+            {
+                attributeService.getAttributes(new AttributeQueryCallback()
+                {
+                    @SuppressWarnings("unchecked")
+                    public boolean handleAttribute(Long id, Serializable value, Serializable[] keys)
+                    {
+                        long queued = (Long)((Map<String, Serializable>)value).get(ENQUEUED);
+
+                        counts[0]++;
+                        if (counts[1] == 0 || queued < counts[1])
+                        {
+                            counts[1] = queued;
+                        }
+
+                        return true;
+                    }
+                }, attribute);
+
+                return null;
+            }
+        }, true);
+
+        return new int[] { (int)counts[0], (int)counts[1] };
+    }
+
+
+    public long getEnqueued()
+    {
+        return enqueued.get();
+    }
+
+
+    /**
+     * Number of changes that replaced a change to the same node that was still waiting
+     *
+     * @return
+     */
+    public long getCollapsed()
+    {
+        return collapsed.get();
+    }
+
+
+    public long getCompleted()
+    {
+        return completed.get();
+    }
+
+
+    public long getRetried()
+    {
+        return retried.get();
+    }
+
+
+    public long getFailed()
+    {
+        return failed.get();
+    }
+
+
+    /**
+     * Number of times an entry was left in the queue because the sync pool was saturated
+     *
+     * @return
+     */
+    public long getDeferred()
+    {
+        return deferred.get();
+    }
+
+
+    /**
+     * Number of times an entry was put off by the Dropbox rate limit or circuit breaker
+     *
+     * @return
+     */
+    public long getRateLimited()
+    {
+        return rateLimited.get();
+    }
+
+
+    /**
+     * Milliseconds until the queue is drained again after being rate limited or finding Dropbox unavailable, or 0
+     *
+     * @return
+     */
+    public long getPausedFor()
+    {
+        return Math.max(0, pausedUntil - System.currentTimeMillis());
+    }
+
+
+    public int getActiveCount()
+    {
+        return executor.getActiveCount();
+    }
+
+
+    private static class Entry
+    {
+        private final String                    key;
+        private final String                    operation;
+        private final NodeRef                   nodeRef;
+        private final String                    user;
+        private final Map<String, Serializable> params;
+        private final long                      enqueued;
+        private final int                       attempts;
+        private final String                    version;
+
+
+        @SuppressWarnings("unchecked")
+        private Entry(String key, Map<String, Serializable> entry)
+        {
+            this.key = key;
+            this.operation = (String)entry.get(OPERATION);
+            this.nodeRef = (NodeRef)entry.get(NODE_REF);
+            this.user = (String)entry.get(USER);
+            this.params = (Map<String, Serializable>)entry.get(PARAMS);
+            this.enqueued = (Long)entry.get(ENQUEUED);
+            this.attempts = (Integer)entry.get(ATTEMPTS);
+            this.version = (String)entry.get(VERSION);
+        }
+    }
+}
@@ -0,0 +1,640 @@
+/*
+ * Copyright 2011-2012 Alfresco Software Limited.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ * 
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.dropbox.service.upload;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.dropbox.exceptions.DropboxClientException;
+import org.alfresco.dropbox.service.connection.DropboxContentClient;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.TraceableThreadFactory;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.simple.JSONObject;
+import org.springframework.social.oauth1.OAuthToken;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+
+
+/**
+ * Uploads large files to Dropbox in chunks using the chunked upload API.
+ * <p>
+ * After every chunk the upload id and offset are saved, in their own transaction, against the node and the user. If the
+ * upload is interrupted the next upload of the same content for the same user carries on from the saved offset. A chunk that
+ * fails with an I/O error or a server error is resent up to <code>maxChunkRetries</code> times.
+ * <p>
+ * While a chunk is being sent the following chunks are read from the content store on a read-ahead thread, into at most
+ * <code>readAheadBuffers</code> buffers, so the connection never waits on the content store. Chunks are still sent one at a
+ * time as Dropbox only accepts the chunks of an upload in order.
+ */
+public class ChunkedUploader
+{
+    private static final Log      logger            = LogFactory.getLog(ChunkedUploader.class);
+
+    private static final String   UPLOAD_ATTRIBUTE  = "org.alfresco.dropbox.upload";
+
+    private static final String   UPLOAD_ID         = "uploadId";
+    private static final String   OFFSET            = "offset";
+    private static final String   CONTENT_URL       = "contentUrl";
+
+    private DropboxContentClient  contentClient;
+    private AttributeService      attributeService;
+    private TransactionService    transactionService;
+
+    private int                   chunkSize         = 4194304;
+    private int                   maxChunkRetries   = 3;
+    private long                  retryDelay        = 1000L;
+    private int                   readAheadBuffers  = 2;
+
+    private ExecutorService       readAheadExecutor;
+
+    private final AtomicLong      chunksSent        = new AtomicLong();
+    private final AtomicLong      chunkRetries      = new AtomicLong();
+    private final AtomicLong      bytesSent         = new AtomicLong();
+    private final AtomicLong      transferMillis    = new AtomicLong();
+    private final AtomicLong      uploadsCompleted  = new AtomicLong();
+    private final AtomicLong      uploadsResumed    = new AtomicLong();
+    private final AtomicLong      readStallMillis   = new AtomicLong();
+
+
+    public void setContentClient(DropboxContentClient contentClient)
+    {
+        this.contentClient = contentClient;
+    }
+
+
+    public void setAttributeService(AttributeService attributeService)
+    {
+        this.attributeService = attributeService;
+    }
+
+
+    public void setTransactionService(TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+
+    public void setChunkSize(int chunkSize)
+    {
+        this.chunkSize = chunkSize;
+    }
+
+
+    public void setMaxChunkRetries(int maxChunkRetries)
+    {
+        this.maxChunkRetries = maxChunkRetries;
+    }
+
+
+    public void setRetryDelay(long retryDelay)
+    {
+        this.retryDelay = retryDelay;
+    }
+
+
+    /**
+     * Number of chunk buffers each upload may have filled or in flight at once. Each buffer is <code>chunkSize</code> bytes.
+     *
+     * @param readAheadBuffers
+     */
+    public void setReadAheadBuffers(int readAheadBuffers)
+    {
+        this.readAheadBuffers = readAheadBuffers;
+    }
+
+
+    public void init()
+    {
+        TraceableThreadFactory threadFactory = new TraceableThreadFactory();
+        threadFactory.setThreadDaemon(true);
+        threadFactory.setNamePrefix("DropboxUploadReadAhead");
+
+        readAheadExecutor = Executors.newCachedThreadPool(threadFactory);
+    }
+
+
+    public void destroy()
+    {
+        if (readAheadExecutor != null)
+        {
+            readAheadExecutor.shutdownNow();
+        }
+    }
+
+
+    /**
+     * Upload the content of the node to path in the current users Dropbox, resuming an earlier interrupted upload of the same
+     * content if there is one.
+     *
+     * @param accessToken the current users access token
+     * @param nodeRef
+     * @param reader reader for the nodes content
+     * @param path Dropbox path of the file
+     * @param overwrite
+     * @return the Dropbox metadata of the file as JSON
+     * @throws IOException
+     */
+    public JSONObject upload(OAuthToken accessToken, NodeRef nodeRef, ContentReader reader, String path, boolean overwrite)
+        throws IOException
+    {
+        final String user = AuthenticationUtil.getRunAsUser();
+        final String contentUrl = reader.getContentUrl();
+        final long size = reader.getSize();
+
+        String uploadId = null;
+        long offset = 0;
+
+        Map<String, Serializable> session = getSession(nodeRef, user);
+        if (session != null && contentUrl.equals(session.get(CONTENT_URL)))
+        {
+            uploadId = (String)session.get(UPLOAD_ID);
+            offset = (Long)session.get(OFFSET);
+
+            uploadsResumed.incrementAndGet();
+            logger.debug("Resuming upload " + uploadId + " of " + path + " at " + offset + " of " + size + " bytes");
+        }
+
+        long start = System.currentTimeMillis();
+        int chunks = 0;
+
+        ChunkPipeline pipeline = new ChunkPipeline(open(reader, offset), offset, size);
+
+        try
+        {
+            while (offset < size)
+            {
+                Chunk chunk = pipeline.next();
+                // The buffer goes back to the reader once it is sent
+                long chunkEnd = chunk.offset + chunk.length;
+
+                JSONObject response;
+                try
+                {
+                    response = sendChunk(accessToken, uploadId, chunk.offset, chunk.data, chunk.length);
+                }
+                catch (HttpClientErrorException hcee)
+                {
+                    if (hcee.getStatusCode().value() == 404 && uploadId != null)
+                    {
+                        // The upload has expired on the Dropbox side. Start again.
+                        logger.debug("Upload " + uploadId + " of " + path + " no longer exists. Restarting.");
+
+                        uploadId = null;
+                        offset = 0;
+                        pipeline.close();
+                        pipeline = new ChunkPipeline(open(reader, offset), offset, size);
+
+                        continue;
+                    }
+
+                    throw hcee;
+                }
+                finally
+                {
+                    pipeline.release(chunk);
+                }
+
+                if (response.get("upload_id") == null || response.get("offset") == null)
+                {
+                    throw new DropboxClientException("Unexpected chunked upload response for " + path + ": " + response);
+                }
+
+                uploadId = response.get("upload_id").toString();
+                long expectedOffset = ((Number)response.get("offset")).longValue();
+
+                if (expectedOffset != chunkEnd)
+                {
+                    // Dropbox has a different idea of how much it has. Throw away what has been read ahead and carry on
+                    // from where it says.
+                    logger.debug("Upload " + uploadId + " of " + path + " is at " + expectedOffset + " not " + chunkEnd);
+
+                    pipeline.close();
+                    pipeline = new ChunkPipeline(open(reader, expectedOffset), expectedOffset, size);
+                }
+
+                offset = expectedOffset;
+                chunks++;
+
+                saveSession(nodeRef, user, uploadId, offset, contentUrl);
+            }
+        }
+        finally
+        {
+            pipeline.close();
+        }
+
+        JSONObject metadata = contentClient.commitChunkedUpload(accessToken, path, uploadId, overwrite);
+
+        removeSession(nodeRef, user);
+        uploadsCompleted.incrementAndGet();
+
+        logger.debug("Uploaded " + size + " bytes of " + path + " in " + chunks + " chunks, "
+                     + (System.currentTimeMillis() - start) + "ms");
+
+        return metadata;
+    }
+
+
+    private JSONObject sendChunk(OAuthToken accessToken, String uploadId, long offset, byte[] chunk, int length)
+        throws IOException
+    {
+        int attempt = 0;
+
+        while (true)
+        {
+            long start = System.currentTimeMillis();
+
+            try
+            {
+                JSONObject response = contentClient.chunkedUpload(accessToken, uploadId, offset, chunk, length);
+
+                transferMillis.addAndGet(System.currentTimeMillis() - start);
+                bytesSent.addAndGet(length);
+                chunksSent.incrementAndGet();
+
+                return response;
+            }
+            catch (IOException ioe)
+            {
+                if (++attempt > maxChunkRetries)
+                {
+                    throw ioe;
+                }
+
+                logger.debug("Chunk at " + offset + " failed: " + ioe.getMessage() + ". Retry " + attempt);
+            }
+            catch (HttpServerErrorException hsee)
+            {
+                if (++attempt > maxChunkRetries)
+                {
+                    throw hsee;
+                }
+
+                logger.debug("Chunk at " + offset + " failed: " + hsee.getMessage() + ". Retry " + attempt);
+            }
+
+            chunkRetries.incrementAndGet();
+
+            try
+            {
+                Thread.sleep(retryDelay * attempt);
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                throw new DropboxClientException("Interrupted while uploading to Dropbox");
+            }
+        }
+    }
+
+
+    private InputStream open(ContentReader reader, long offset)
+        throws IOException
+    {
+        // A ContentReader can only be read once, so always work from a fresh one
+        InputStream inputStream = reader.getReader().getContentInputStream();
+
+        long remaining = offset;
+        while (remaining > 0)
+        {
+            long skipped = inputStream.skip(remaining);
+
+            if (skipped <= 0)
+            {
+                inputStream.close();
+                throw new IOException("Unable to skip to " + offset + " in " + reader.getContentUrl());
+            }
+
+            remaining -= skipped;
+        }
+
+        return inputStream;
+    }
+
+
+    private int read(InputStream inputStream, byte[] buffer, int length)
+        throws IOException
+    {
+        int total = 0;
+
+        while (total < length)
+        {
+            int read = inputStream.read(buffer, total, length - total);
+
+            if (read == -1)
+            {
+                throw new IOException("Unexpected end of content after " + total + " of " + length + " bytes");
+            }
+
+            total += read;
+        }
+
+        return total;
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Serializable> getSession(final NodeRef nodeRef, final String user)
+    {
+        RetryingTransactionCallback<Map<String, Serializable>> txnWork = new RetryingTransactionCallback<Map<String, Serializable>>()
+        {
+            public Map<String, Serializable> execute()
+                throws Throwable
+            {
+                return (Map<String, Serializable>)attributeService.getAttribute(UPLOAD_ATTRIBUTE, nodeRef.toString(), user);
+            }
+        };
+
+        return transactionService.getRetryingTransactionHelper().doInTransaction(txnWork, true, true);
+    }
+
+
+    private void saveSession(final NodeRef nodeRef, final String user, String uploadId, long offset, String contentUrl)
+    {
+        final HashMap<String, Serializable> session = new HashMap<String, Serializable>();
+        session.put(UPLOAD_ID, uploadId);
+        session.put(OFFSET, offset);
+        session.put(CONTENT_URL, contentUrl);
+
+        // Saved in its own transaction so that the progress survives a failure of the surrounding transaction
+        RetryingTransactionCallback<Object> txnWork = new RetryingTransactionCallback<Object>()
+        {
+            public Object execute()
+                throws Throwable
+            {
+                attributeService.setAttribute(session, UPLOAD_ATTRIBUTE, nodeRef.toString(), user);
+
+                return null;
+            }
+        };
+
+        transactionService.getRetryingTransactionHelper().doInTransaction(txnWork, false, true);
+    }
+
+
+    private void removeSession(final NodeRef nodeRef, final String user)
+    {
+        RetryingTransactionCallback<Object> txnWork = new RetryingTransactionCallback<Object>()
+        {
+            public Object execute()
+                throws Throwable
+            {
+                attributeService.removeAttribute(UPLOAD_ATTRIBUTE, nodeRef.toString(), user);
+
+                return null;
+            }
+        };
+
+        transactionService.getRetryingTransactionHelper().doInTransaction(txnWork, false, true);
+    }
+
+
+    public long getChunksSent()
+    {
+        return chunksSent.get();
+    }
+
+
+    public long getChunkRetries()
+    {
+        return chunkRetries.get();
+    }
+
+
+    public long getBytesSent()
+    {
+        return bytesSent.get();
+    }
+
+
+    public long getUploadsCompleted()
+    {
+        return uploadsCompleted.get();
+    }
+
+
+    public long getUploadsResumed()
+    {
+        return uploadsResumed.get();
+    }
+
+
+    /**
+     * Total time spent waiting for a chunk to be read from the content store, in milliseconds. If this grows with the
+     * transfer time the content store, not the network, is holding uploads up.
+     *
+     * @return
+     */
+    public long getReadStallMillis()
+    {
+        return readStallMillis.get();
+    }
+
+
+    /**
+     * Average throughput of the chunks sent so far, in bytes per second
+     *
+     * @return
+     */
+    public long getThroughput()
+    {
+        long millis = transferMillis.get();
+
+        return millis > 0 ? bytesSent.get() * 1000 / millis : 0;
+    }
+
+
+    /**
+     * A chunk of content read from the content store
+     */
+    private static class Chunk
+    {
+        private final byte[] data;
+        private long         offset;
+        private int          length;
+        private IOException  error;
+
+
+        private Chunk(byte[] data)
+        {
+            this.data = data;
+        }
+    }
+
+
+    /**
+     * Reads the content chunk by chunk on a read-ahead thread so the next chunk is ready as soon as the current one has been
+     * sent. Only <code>readAheadBuffers</code> buffers exist per pipeline; the reader waits for a buffer to be released
+     * before it reads any further.
+     */
+    private class ChunkPipeline
+        implements Runnable
+    {
+        private final InputStream          inputStream;
+        private final long                 size;
+        private long                       position;
+
+        private final BlockingQueue<Chunk> free;
+        private final BlockingQueue<Chunk> filled;
+
+        private volatile boolean           closed;
+        // Whichever of the reader and close gets here first closes the stream
+        private final AtomicBoolean        claimed = new AtomicBoolean();
+        private final Future<?>            future;
+
+
+        private ChunkPipeline(InputStream inputStream, long offset, long size)
+        {
+            this.inputStream = inputStream;
+            this.position = offset;
+            this.size = size;
+
+            int buffers = Math.max(1, readAheadBuffers);
+
+            free = new ArrayBlockingQueue<Chunk>(buffers);
+            // Room for every buffer plus a chunk carrying a read error
+            filled = new ArrayBlockingQueue<Chunk>(buffers + 1);
+
+            for (int i = 0; i < buffers; i++)
+            {
+                free.add(new Chunk(new byte[(int)Math.min(chunkSize, Math.max(size - offset, 1))]));
+            }
+
+            future = readAheadExecutor.submit(this);
+        }
+
+
+        public void run()
+        {
+            if (!claimed.compareAndSet(false, true))
+            {
+                return;
+            }
+
+            try
+            {
+                while (!closed && position < size)
+                {
+                    Chunk chunk = free.take();
+
+                    chunk.offset = position;
+                    chunk.length = read(inputStream, chunk.data, (int)Math.min(chunk.data.length, size - position));
+                    position += chunk.length;
+
+                    filled.put(chunk);
+                }
+            }
+            catch (InterruptedException ie)
+            {
+                // Closed
+            }
+            catch (IOException ioe)
+            {
+                Chunk chunk = new Chunk(null);
+                chunk.error = ioe;
+
+                filled.offer(chunk);
+            }
+            finally
+            {
+                closeStream();
+            }
+        }
+
+
+        /**
+         * Wait for the next chunk. It must be passed to {@link #release(Chunk)} once it has been sent.
+         *
+         * @return
+         * @throws IOException if the content could not be read
+         */
+        private Chunk next()
+            throws IOException
+        {
+            long start = System.currentTimeMillis();
+
+            Chunk chunk;
+            try
+            {
+                chunk = filled.take();
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                throw new DropboxClientException("Interrupted while uploading to Dropbox");
+            }
+
+            readStallMillis.addAndGet(System.currentTimeMillis() - start);
+
+            if (chunk.error != null)
+            {
+                throw chunk.error;
+            }
+
+            return chunk;
+        }
+
+
+        private void release(Chunk chunk)
+        {
+            free.offer(chunk);
+        }
+
+
+        private void close()
+        {
+            closed = true;
+            future.cancel(true);
+
+            // The reader never ran, so the stream is closed here
+            if (claimed.compareAndSet(false, true))
+            {
+                closeStream();
+            }
+        }
+
+
+        private void closeStream()
+        {
+            try
+            {
+                inputStream.close();
+            }
+            catch (IOException ioe)
+            {
+                logger.debug("Unable to close content stream: " + ioe.getMessage());
+            }
+        }
+    }
+}
@@ -24,6 +24,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 import org.alfresco.dropbox.DropboxConstants;
+import org.alfresco.dropbox.service.connection.DropboxConnectionCache;
 import org.alfresco.service.cmr.dictionary.InvalidAspectException;
 import org.alfresco.service.cmr.repository.InvalidNodeRefException;
 import org.alfresco.service.cmr.repository.NodeRef;
@@ -46,12 +47,13 @@ import org.springframework.extensions.webscripts.WebScriptRequest;
 public class DelinkDropboxUser
     extends DeclarativeWebScript
 {
-    private static Log          logger  = LogFactory.getLog(DelinkDropboxUser.class);
+    private static Log             logger  = LogFactory.getLog(DelinkDropboxUser.class);
 
-    private PersonService       personService;
-    private NodeService         nodeService;
+    private PersonService          personService;
+    private NodeService            nodeService;
+    private DropboxConnectionCache connectionCache;
 
-    private static final String SUCCESS = "success";
+    private static final String    SUCCESS = "success";
 
 
     public void setPersonService(PersonService personService)
@@ -67,6 +69,12 @@ public class DelinkDropboxUser
     }
 
 
+    public void setConnectionCache(DropboxConnectionCache connectionCache)
+    {
+        this.connectionCache = connectionCache;
+    }
+
+
     @Override
     protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache)
     {
@@ -83,6 +91,7 @@ public class DelinkDropboxUser
                 try
                 {
                     nodeService.removeAspect(nodeRef, DropboxConstants.Model.ASPECT_DROBOX_OAUTH);
+                    connectionCache.invalidateAfterCommit(user);
                     // TODO This may need to be expanded out to remove much more
                     // ie, removing all synched content. this should be done as
                     // an action...async
@@ -26,8 +26,10 @@ import java.util.Set;
 import java.util.regex.Matcher;
 
 import org.alfresco.dropbox.DropboxConstants;
+import org.alfresco.dropbox.exceptions.DropboxClientException;
 import org.springframework.social.dropbox.api.Metadata;
 import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestClientException;
 import org.alfresco.model.ContentModel;
 import org.alfresco.repo.policy.BehaviourFilter;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
@@ -238,7 +240,12 @@ public class GetNode
 
         syncedUsers.remove(currentUser);
 
-        for (String key : syncedUsers.keySet())
+        // The current user has just synced the file from their Dropbox, so the other users can copy it from there rather
+        // than have it uploaded again. A copy never replaces a file, so users who already have the node synced are sent it.
+        final Set<String> usersWithFile = dropboxService.getSyncedUsers(nodeRef).keySet();
+        final String copyRef = usersWithFile.containsAll(syncedUsers.keySet()) ? null : getCopyRef(nodeRef);
+
+        for (final String key : syncedUsers.keySet())
         {
             AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Object>()
             {
@@ -248,7 +255,14 @@ public class GetNode
                     Metadata metadata = null;
                     if (nodeService.getType(nodeRef).equals(ContentModel.TYPE_CONTENT))
                     {
-                        metadata = dropboxService.putFile(nodeRef, true);
+                        if (copyRef != null && !usersWithFile.contains(key))
+                        {
+                            metadata = dropboxService.copyFromRef(nodeRef, copyRef);
+                        }
+                        else
+                        {
+                            metadata = dropboxService.putFile(nodeRef, true);
+                        }
                         dropboxService.persistMetadata(metadata, nodeRef);
                     }
                     else if (nodeService.getType(nodeRef).equals(ContentModel.TYPE_FOLDER))
@@ -266,7 +280,7 @@ public class GetNode
                         }
                         catch (HttpClientErrorException hcee)
                         {
-                            if (hcee.getStatusCode().ordinal() == Status.STATUS_FORBIDDEN)
+                            if (hcee.getStatusCode().value() == Status.STATUS_FORBIDDEN)
                             {
                                 metadata = dropboxService.getMetadata(nodeRef);
                             }
@@ -293,6 +307,30 @@ public class GetNode
     }
 
 
+    private String getCopyRef(NodeRef nodeRef)
+    {
+        String copyRef = null;
+
+        if (nodeService.getType(nodeRef).equals(ContentModel.TYPE_CONTENT))
+        {
+            try
+            {
+                copyRef = dropboxService.createCopyRef(nodeRef);
+            }
+            catch (DropboxClientException dce)
+            {
+                logger.debug("Unable to create Copy Ref for " + nodeRef + ": " + dce.getMessage());
+            }
+            catch (RestClientException rce)
+            {
+                logger.debug("Unable to create Copy Ref for " + nodeRef + ": " + rce.getMessage());
+            }
+        }
+
+        return copyRef;
+    }
+
+
     /**
      * Filter out users on the node being passed that are on the parent that don't need to be updated.
      * 
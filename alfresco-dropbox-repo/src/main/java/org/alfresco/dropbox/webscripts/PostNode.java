@@ -28,9 +28,11 @@ import org.alfresco.dropbox.DropboxConstants;
 import org.springframework.social.dropbox.api.Metadata;
 import org.springframework.web.client.HttpClientErrorException;
 import org.alfresco.dropbox.exceptions.DropboxClientException;
+import org.alfresco.dropbox.exceptions.DropboxUnavailableException;
 import org.alfresco.dropbox.exceptions.FileExistsException;
 import org.alfresco.dropbox.exceptions.FileSizeException;
 import org.alfresco.dropbox.exceptions.NotModifiedException;
+import org.alfresco.dropbox.exceptions.RateLimitException;
 import org.alfresco.dropbox.exceptions.TooManyFilesException;
 import org.alfresco.model.ContentModel;
 import org.alfresco.service.cmr.dictionary.InvalidTypeException;
@@ -59,8 +61,6 @@ public class PostNode
 
     private SiteService         siteService;
 
-    private static final String FOLDER_EXISTS = "403 Forbidden";
-
 
     public void setSiteService(SiteService siteService)
     {
@@ -145,6 +145,14 @@ public class PostNode
         {
             throw new WebScriptException(Status.STATUS_NOT_ACCEPTABLE, tmfe.getMessage());
         }
+        catch (RateLimitException rle)
+        {
+            throw new WebScriptException(Status.STATUS_SERVICE_UNAVAILABLE, rle.getMessage());
+        }
+        catch (DropboxUnavailableException due)
+        {
+            throw new WebScriptException(Status.STATUS_SERVICE_UNAVAILABLE, due.getMessage());
+        }
         catch (DropboxClientException dce)
         {
             throw new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR, dce.getMessage());
@@ -172,7 +180,8 @@ public class PostNode
             }
             catch (HttpClientErrorException hcee)
             {
-                if (hcee.getMessage().equals(FOLDER_EXISTS))
+                // A 403 means the folder already exists
+                if (hcee.getStatusCode().value() == Status.STATUS_FORBIDDEN)
                 {
                     metadata = dropboxService.getMetadata(nodeRef);
                 }